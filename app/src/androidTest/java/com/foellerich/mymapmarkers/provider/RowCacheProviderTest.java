@@ -0,0 +1,111 @@
+package com.foellerich.mymapmarkers.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+/**
+ * Writes with a selection have to drop exactly the cached rows they touch, which the
+ * provider finds by running the selection over the ids of the cache.
+ */
+public class RowCacheProviderTest extends AndroidTestCase {
+
+    private RenamingDelegatingContext mContext;
+    private MarkerProvider mProvider;
+    private Uri mA;
+    private Uri mB;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new RenamingDelegatingContext(getContext(), "test_");
+        mContext.deleteDatabase(MarkerProvider.MarkerDatabase.DATABASE_NAME);
+        mProvider = new MarkerProvider();
+        mProvider.attachInfo(mContext, null);
+        mA = insert("a", "Alpha");
+        mB = insert("b", "Beta");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mProvider.shutdown();
+        mContext.deleteDatabase(MarkerProvider.MarkerDatabase.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testUpdateBySelectionInvalidatesMatchingRows() {
+        assertEquals("Alpha", queryName(mA));
+        assertEquals("Beta", queryName(mB));
+        assertStats(0, 2);
+
+        ContentValues values = new ContentValues();
+        values.put(MarkerContract.Marker.COLUMN_NAME_NAME, "Gamma");
+        assertEquals(1, mProvider.update(MarkerContract.Marker.CONTENT_URI, values,
+                MarkerContract.Marker.COLUMN_NAME_NAME + "=?", new String[]{"Beta"}));
+
+        // the untouched row stays cached, the updated one is read again
+        assertEquals("Alpha", queryName(mA));
+        assertEquals("Gamma", queryName(mB));
+        assertStats(1, 3);
+        assertEquals("Gamma", queryName(mB));
+        assertStats(2, 3);
+    }
+
+    public void testDeleteBySelectionInvalidatesMatchingRows() {
+        assertEquals("Alpha", queryName(mA));
+        assertEquals("Beta", queryName(mB));
+
+        assertEquals(1, mProvider.delete(MarkerContract.Marker.CONTENT_URI,
+                MarkerContract.Marker.COLUMN_NAME_NAME + "=?", new String[]{"Alpha"}));
+
+        assertEquals(null, queryName(mA));
+        assertEquals("Beta", queryName(mB));
+        assertEquals(null, queryName(MarkerContract.Marker.buildEntryUri(
+                MarkerContract.Marker.SOURCE_DEFAULT, "a")));
+    }
+
+    public void testUpdateByIdInvalidatesRow() {
+        assertEquals("Alpha", queryName(mA));
+        ContentValues values = new ContentValues();
+        values.put(MarkerContract.Marker.COLUMN_NAME_NAME, "Alef");
+        assertEquals(1, mProvider.update(mA, values, null, null));
+        assertEquals("Alef", queryName(mA));
+        assertEquals("Alef", queryName(MarkerContract.Marker.buildEntryUri(
+                MarkerContract.Marker.SOURCE_DEFAULT, "a")));
+    }
+
+    private Uri insert(String entryId, String name) {
+        ContentValues values = new ContentValues();
+        values.put(MarkerContract.Marker.COLUMN_NAME_ENTRY_ID, entryId);
+        values.put(MarkerContract.Marker.COLUMN_NAME_NAME, name);
+        values.put(MarkerContract.Marker.COLUMN_NAME_ADDRESS, "");
+        values.put(MarkerContract.Marker.COLUMN_NAME_LAT, 52.5);
+        values.put(MarkerContract.Marker.COLUMN_NAME_LNG, 13.4);
+        Uri uri = mProvider.insert(MarkerContract.Marker.CONTENT_URI, values);
+        assertNotNull(uri);
+        return uri;
+    }
+
+    /**
+     * @return name of the marker, or null if there is none
+     */
+    private String queryName(Uri uri) {
+        Cursor c = mProvider.query(uri,
+                new String[]{MarkerContract.Marker.COLUMN_NAME_NAME}, null, null, null);
+        assertNotNull(c);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    private void assertStats(long hits, long misses) {
+        Bundle stats = mProvider.call(MarkerContract.METHOD_ROW_CACHE_STATS, null, null);
+        assertEquals("hits", hits, stats.getLong(MarkerContract.EXTRA_HITS));
+        assertEquals("misses", misses, stats.getLong(MarkerContract.EXTRA_MISSES));
+    }
+}
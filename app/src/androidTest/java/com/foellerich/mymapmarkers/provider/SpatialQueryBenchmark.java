@@ -0,0 +1,116 @@
+package com.foellerich.mymapmarkers.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+
+import com.example.android.common.db.SelectionBuilder;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares viewport query latency of the R*Tree against the lat/lng column index for growing
+ * datasets. Results are written to the log, the test only fails if both paths disagree.
+ */
+public class SpatialQueryBenchmark extends AndroidTestCase {
+    private static final String TAG = "SpatialQueryBenchmark";
+    private static final int[] DATASET_SIZES = new int[]{1000, 10000, 100000, 200000};
+    private static final int QUERIES = 200;
+
+    private RenamingDelegatingContext mContext;
+    private MarkerProvider.MarkerDatabase mDatabase;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new RenamingDelegatingContext(getContext(), "benchmark_");
+        mContext.deleteDatabase(MarkerProvider.MarkerDatabase.DATABASE_NAME);
+        mDatabase = new MarkerProvider.MarkerDatabase(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        mContext.deleteDatabase(MarkerProvider.MarkerDatabase.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testViewportQueries() {
+        final SQLiteDatabase db = mDatabase.getWritableDatabase();
+        if (!mDatabase.hasSpatialIndex(db)) {
+            Log.w(TAG, "R*Tree not available on this device, nothing to compare");
+            return;
+        }
+        final Random random = new Random(42);
+        int loaded = 0;
+        for (int size : DATASET_SIZES) {
+            fill(db, random, size - loaded);
+            loaded = size;
+
+            // wide and short boxes, like a map screen in landscape, of a few sizes
+            final double[][] boxes = new double[QUERIES][];
+            for (int i = 0; i < QUERIES; i++) {
+                double height = 0.5 * (1 + random.nextInt(8));
+                double width = height * 4;
+                double minLat = random.nextDouble() * (180 - height) - 90;
+                double minLng = random.nextDouble() * (360 - width) - 180;
+                boxes[i] = new double[]{minLat, minLng, minLat + height, minLng + width};
+            }
+            final int[] columnCounts = new int[QUERIES];
+            final int[] rtreeCounts = new int[QUERIES];
+            // warm up the page cache before measuring either path
+            run(db, boxes, false, columnCounts);
+            long columnMedian = run(db, boxes, false, columnCounts);
+            long rtreeMedian = run(db, boxes, true, rtreeCounts);
+            assertTrue("R*Tree and column index disagree",
+                    Arrays.equals(columnCounts, rtreeCounts));
+            Log.i(TAG, size + " markers: column index " + columnMedian / 1000 + " us, R*Tree "
+                    + rtreeMedian / 1000 + " us (median of " + QUERIES + " queries)");
+        }
+    }
+
+    /**
+     * @return median latency in nanoseconds
+     */
+    private static long run(SQLiteDatabase db, double[][] boxes, boolean spatialIndex,
+                            int[] counts) {
+        final long[] latencies = new long[boxes.length];
+        final String[] projection = new String[]{MarkerContract.Marker._ID};
+        for (int i = 0; i < boxes.length; i++) {
+            long start = System.nanoTime();
+            SelectionBuilder builder = new SelectionBuilder()
+                    .table(MarkerContract.Marker.TABLE_NAME);
+            MarkerProvider.whereBoundingBox(builder,
+                    boxes[i][0], boxes[i][1], boxes[i][2], boxes[i][3], spatialIndex);
+            Cursor c = builder.query(db, projection, null);
+            counts[i] = c.getCount();
+            c.close();
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        return latencies[latencies.length / 2];
+    }
+
+    private static void fill(SQLiteDatabase db, Random random, int count) {
+        SQLiteStatement insert = db.compileStatement("INSERT INTO "
+                + MarkerContract.Marker.TABLE_NAME + " ("
+                + MarkerContract.Marker.COLUMN_NAME_LAT + ","
+                + MarkerContract.Marker.COLUMN_NAME_LNG + ") VALUES (?,?)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                insert.bindDouble(1, random.nextDouble() * 180 - 90);
+                insert.bindDouble(2, random.nextDouble() * 360 - 180);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+}
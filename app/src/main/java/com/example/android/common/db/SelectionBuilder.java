@@ -18,13 +18,17 @@
  * Modifications:
  * -Imported from AOSP frameworks/base/core/java/com/android/internal/content
  * -Changed package name
+ * -Added update() and delete() through a StatementCache
+ * -Only build the verbose log messages when they are logged
  */
 
 package com.example.android.common.db;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -323,7 +327,9 @@ public class SelectionBuilder {
                         String having, String orderBy, String limit) {
         assertTable();
         if (columns != null) mapColumns(columns);
-        Log.v(TAG, "query(columns=" + Arrays.toString(columns) + ") " + this);
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "query(columns=" + Arrays.toString(columns) + ") " + this);
+        }
         return db.query(mTable, columns, getSelection(), getSelectionArgs(), groupBy, having,
                 orderBy, limit);
     }
@@ -338,10 +344,53 @@ public class SelectionBuilder {
      */
     public int update(SQLiteDatabase db, ContentValues values) {
         assertTable();
-        Log.v(TAG, "update() " + this);
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "update() " + this);
+        }
         return db.update(mTable, values, getSelection(), getSelectionArgs());
     }
 
+    /**
+     * Execute an {@code UPDATE} against database through a statement compiled once for every
+     * table, set of columns and selection.
+     *
+     * @param db Database to query.
+     * @param values A map from column names to new column values. null is a valid value that will
+     *               be translated to NULL
+     * @param statements Cache of the compiled statements of {@code db}.
+     * @return The number of rows affected.
+     */
+    public int update(SQLiteDatabase db, ContentValues values, StatementCache statements) {
+        assertTable();
+        if (values == null || values.size() == 0) {
+            throw new IllegalArgumentException("Empty values");
+        }
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "update() " + this);
+        }
+        // sorted, so that the same columns always make the same statement
+        String[] columns = values.keySet().toArray(new String[values.size()]);
+        Arrays.sort(columns);
+        StringBuilder sql = new StringBuilder(120).append("UPDATE ").append(mTable).append(" SET ");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sql.append(',');
+            }
+            sql.append(columns[i]).append("=?");
+        }
+        if (mSelection.length() > 0) {
+            sql.append(" WHERE ").append(mSelection);
+        }
+        Object[] bindArgs = new Object[columns.length + mSelectionArgs.size()];
+        for (int i = 0; i < columns.length; i++) {
+            bindArgs[i] = values.get(columns[i]);
+        }
+        for (int i = 0; i < mSelectionArgs.size(); i++) {
+            bindArgs[columns.length + i] = mSelectionArgs.get(i);
+        }
+        return executeUpdateDelete(db, sql.toString(), bindArgs, statements);
+    }
+
     /**
      * Execute {@code DELETE} against database.
      *
@@ -350,7 +399,40 @@ public class SelectionBuilder {
      */
     public int delete(SQLiteDatabase db) {
         assertTable();
-        Log.v(TAG, "delete() " + this);
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "delete() " + this);
+        }
         return db.delete(mTable, getSelection(), getSelectionArgs());
     }
+
+    /**
+     * Execute {@code DELETE} against database through a statement compiled once for every
+     * table and selection.
+     *
+     * @param db Database to query.
+     * @param statements Cache of the compiled statements of {@code db}.
+     * @return The number of rows affected.
+     */
+    public int delete(SQLiteDatabase db, StatementCache statements) {
+        assertTable();
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "delete() " + this);
+        }
+        String sql = "DELETE FROM " + mTable +
+                (mSelection.length() > 0 ? " WHERE " + mSelection : "");
+        return executeUpdateDelete(db, sql, mSelectionArgs.toArray(), statements);
+    }
+
+    private static int executeUpdateDelete(SQLiteDatabase db, String sql, Object[] bindArgs,
+                                           StatementCache statements) {
+        SQLiteStatement statement = statements.acquire(db, sql);
+        try {
+            for (int i = 0; i < bindArgs.length; i++) {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, bindArgs[i]);
+            }
+            return statement.executeUpdateDelete();
+        } finally {
+            statements.release(db, sql, statement);
+        }
+    }
 }
@@ -0,0 +1,83 @@
+package com.example.android.common.db;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of compiled {@link SQLiteStatement}s of one database, keyed by their SQL.
+ *
+ * <p>The update() and delete() of {@link SelectionBuilder} taking a cache run their
+ * statements through it, so that the same update or delete of many rows, one row at a time,
+ * is compiled once and only bound and executed for every row.
+ *
+ * <p>A statement belongs to the thread that acquired it until it is released; a thread that
+ * asks for a statement in use compiles its own. Thread safe.
+ */
+public class StatementCache {
+
+    private final LinkedHashMap<String, SQLiteStatement> mStatements;
+
+    private SQLiteDatabase mDatabase = null;
+
+    /**
+     * @param maxSize number of statements kept, the least recently used one is closed
+     */
+    public StatementCache(final int maxSize) {
+        mStatements = new LinkedHashMap<String, SQLiteStatement>(maxSize, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+                if (size() <= maxSize) {
+                    return false;
+                }
+                eldest.getValue().close();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Take a statement out of the cache, compiling it if it is missing or in use.
+     * @return statement without bindings, to hand back to {@link #release}
+     */
+    public SQLiteStatement acquire(SQLiteDatabase db, String sql) {
+        SQLiteStatement statement;
+        synchronized (this) {
+            if (db != mDatabase) {
+                clear();
+                mDatabase = db;
+            }
+            statement = mStatements.remove(sql);
+        }
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+        }
+        return statement;
+    }
+
+    /**
+     * Put a statement taken by {@link #acquire} back into the cache.
+     */
+    public void release(SQLiteDatabase db, String sql, SQLiteStatement statement) {
+        statement.clearBindings();
+        synchronized (this) {
+            if (db == mDatabase && !mStatements.containsKey(sql)) {
+                mStatements.put(sql, statement);
+                return;
+            }
+        }
+        statement.close();
+    }
+
+    /**
+     * Close all cached statements, e.g. before the database is closed.
+     */
+    public synchronized void clear() {
+        for (SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+    }
+}
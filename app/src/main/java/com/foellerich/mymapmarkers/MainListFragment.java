@@ -10,21 +10,31 @@ import android.content.CursorLoader;
 import android.content.Intent;
 import android.content.Loader;
 import android.content.SyncStatusObserver;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DataSetObserver;
+import android.database.MergeCursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.ListView;
+import android.widget.SearchView;
 import android.widget.SimpleCursorAdapter;
 
 import com.example.android.common.accounts.GenericAccountService;
 import com.foellerich.mymapmarkers.provider.MarkerContract;
 
+import java.util.ArrayList;
+
 /**
  * Created by foellerich on 28.04.2015.
  */
@@ -36,6 +46,31 @@ public class MainListFragment extends ListFragment
     private SimpleCursorAdapter mAdapter;
     private Object mSyncObserverHandle;
     private Menu mOptionsMenu;
+    private String mQuery = null;
+
+    private static final String PREF_SORT = "list_sort";
+
+    /** One of the {@code SORT_} orders of {@link MarkerContract.Marker}. */
+    private String mSort = MarkerContract.Marker.SORT_NAME;
+
+    /**
+     * Rows per page of the list. The list starts with the first page and loads the next one
+     * when scrolled close to the end of the last.
+     */
+    private static final int PAGE_SIZE = 100;
+
+    private static final int LOADER_SEARCH = 0;
+    /** Loader of the first page, the following pages use the ids after it. */
+    private static final int LOADER_FIRST_PAGE = 1;
+
+    /** Cursors of the pages of the list, null while a page is loading for the first time. */
+    private final ArrayList<Cursor> mPages = new ArrayList<Cursor>();
+    /** Sort key and _id of the last row of every page but the last one. */
+    private final ArrayList<String> mPageEndKeys = new ArrayList<String>();
+    private final ArrayList<Long> mPageEndIds = new ArrayList<Long>();
+    /** Pages merged for the adapter, made of {@link PageCursor}s. */
+    private MergeCursor mPagesCursor = null;
+
     private static final String[] PROJECTION = new String[]{
             MarkerContract.Marker._ID,
             MarkerContract.Marker.COLUMN_NAME_NAME,
@@ -49,6 +84,8 @@ public class MainListFragment extends ListFragment
     private static final int COLUMN_ADDRESS = 2;
     private static final int COLUMN_LAT = 3;
     private static final int COLUMN_LNG = 4;
+    /** Sort key column the pages add to the projection. */
+    private static final int COLUMN_SORT_KEY = 5;
 
     private static final String[] FROM_COLUMNS = new String[]{
             MarkerContract.Marker.COLUMN_NAME_NAME,
@@ -66,6 +103,8 @@ public class MainListFragment extends ListFragment
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setHasOptionsMenu(true);
+        mSort = PreferenceManager.getDefaultSharedPreferences(getActivity())
+                .getString(PREF_SORT, MarkerContract.Marker.SORT_NAME);
     }
 
     @Override
@@ -88,7 +127,27 @@ public class MainListFragment extends ListFragment
         );
         setListAdapter(mAdapter);
         setEmptyText(getText(R.string.loading));
-        getLoaderManager().initLoader(0, null, this);
+        getListView().setOnScrollListener(mScrollListener);
+        mPages.clear();
+        mPageEndKeys.clear();
+        mPageEndIds.clear();
+        mPages.add(null);
+        if (destroyPageLoaders()) {
+            // the retained first page is bounded by the second one
+            getLoaderManager().restartLoader(LOADER_FIRST_PAGE, null, this);
+        } else {
+            getLoaderManager().initLoader(LOADER_FIRST_PAGE, null, this);
+        }
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        if (mPagesCursor != null) {
+            mAdapter.swapCursor(null);
+            mPagesCursor.close();
+            mPagesCursor = null;
+        }
     }
 
     @Override
@@ -112,39 +171,291 @@ public class MainListFragment extends ListFragment
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        // we only have one loader so we can ignore `i`
+        if (id == LOADER_SEARCH) {
+            return new CursorLoader(getActivity(), // context
+                    MarkerContract.Marker.buildSearchUri(mQuery), // URI
+                    PROJECTION,                     // Projection
+                    null,                           // Selection
+                    null,                           // selection args
+                    null                            // sorting, best matches first
+            );
+        }
+        String[] projection = new String[PROJECTION.length + 1];
+        System.arraycopy(PROJECTION, 0, projection, 0, PROJECTION.length);
+        projection[COLUMN_SORT_KEY] = MarkerContract.Marker.getSortKeyColumn(mSort);
         return new CursorLoader(getActivity(), // context
-                MarkerContract.Marker.CONTENT_URI, // URI
-                PROJECTION,                     // Projection
+                buildPageUri(id - LOADER_FIRST_PAGE), // URI
+                projection,                     // Projection
                 null,                           // Selection
                 null,                           // selection args
-                MarkerContract.Marker.COLUMN_NAME_ENTRY_ID // sorting
+                null                            // sorting, the one of the page
         );
     }
 
+    /**
+     * Every page but the last one ends with the row it ended with when the next page was
+     * added, so the pages keep covering the whole table while syncs change it.
+     */
+    private Uri buildPageUri(int page) {
+        String afterKey = page > 0 ? mPageEndKeys.get(page - 1) : null;
+        long afterId = page > 0 ? mPageEndIds.get(page - 1) : 0;
+        if (page < mPageEndKeys.size()) {
+            return MarkerContract.Marker.buildPageUri(mSort, afterKey, afterId,
+                    mPageEndKeys.get(page), mPageEndIds.get(page));
+        }
+        return MarkerContract.Marker.buildPageUri(mSort, afterKey, afterId, PAGE_SIZE);
+    }
+
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
-        mAdapter.changeCursor(cursor);
+        // the loaders own their cursors, so the adapter only swaps them
+        if (loader.getId() == LOADER_SEARCH) {
+            mAdapter.swapCursor(cursor);
+            return;
+        }
+        int page = loader.getId() - LOADER_FIRST_PAGE;
+        // a page dropped since the load started
+        if (page < mPages.size()) {
+            mPages.set(page, cursor);
+            showPages();
+        }
     }
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
-        mAdapter.changeCursor(null);
+        if (loader.getId() == LOADER_SEARCH) {
+            mAdapter.swapCursor(null);
+            return;
+        }
+        int page = loader.getId() - LOADER_FIRST_PAGE;
+        if (page < mPages.size()) {
+            mPages.set(page, null);
+            showPages();
+        }
     }
 
+    private void showPages() {
+        if (mQuery != null) {
+            return;
+        }
+        ArrayList<Cursor> loaded = new ArrayList<Cursor>(mPages.size());
+        for (Cursor page : mPages) {
+            if (page != null) {
+                loaded.add(new PageCursor(page));
+            }
+        }
+        MergeCursor previous = mPagesCursor;
+        mPagesCursor = new MergeCursor(loaded.toArray(new Cursor[loaded.size()]));
+        mAdapter.swapCursor(mPagesCursor);
+        if (previous != null) {
+            // unregisters it from the pages, which stay open
+            previous.close();
+        }
+    }
+
+    /**
+     * Page as a part of the merged list. The page belongs to its loader, so closing this only
+     * drops the observers registered through it, the one of the {@link MergeCursor} among them.
+     */
+    private static class PageCursor extends CursorWrapper {
+        private final ArrayList<DataSetObserver> mDataSetObservers =
+                new ArrayList<DataSetObserver>();
+        private final ArrayList<ContentObserver> mContentObservers =
+                new ArrayList<ContentObserver>();
+        private boolean mReleased = false;
+
+        PageCursor(Cursor page) {
+            super(page);
+        }
+
+        @Override
+        public void registerDataSetObserver(DataSetObserver observer) {
+            super.registerDataSetObserver(observer);
+            mDataSetObservers.add(observer);
+        }
+
+        @Override
+        public void unregisterDataSetObserver(DataSetObserver observer) {
+            if (mDataSetObservers.remove(observer)) {
+                super.unregisterDataSetObserver(observer);
+            }
+        }
+
+        @Override
+        public void registerContentObserver(ContentObserver observer) {
+            super.registerContentObserver(observer);
+            mContentObservers.add(observer);
+        }
+
+        @Override
+        public void unregisterContentObserver(ContentObserver observer) {
+            if (mContentObservers.remove(observer)) {
+                super.unregisterContentObserver(observer);
+            }
+        }
+
+        @Override
+        public void deactivate() {
+            // the loader decides about the page
+        }
+
+        @Override
+        public boolean isClosed() {
+            return mReleased || super.isClosed();
+        }
+
+        @Override
+        public void close() {
+            for (DataSetObserver observer : mDataSetObservers) {
+                super.unregisterDataSetObserver(observer);
+            }
+            for (ContentObserver observer : mContentObservers) {
+                super.unregisterContentObserver(observer);
+            }
+            mDataSetObservers.clear();
+            mContentObservers.clear();
+            mReleased = true;
+        }
+    }
+
+    /**
+     * Add the page after the last one, unless it is still loading or the last one is not
+     * full. The last page gets bounded by its last row first.
+     */
+    private void loadNextPage() {
+        int last = mPages.size() - 1;
+        Cursor cursor = mPages.get(last);
+        if (cursor == null || cursor.getCount() < PAGE_SIZE || !cursor.moveToLast()) {
+            return;
+        }
+        mPageEndKeys.add(cursor.getString(COLUMN_SORT_KEY));
+        mPageEndIds.add(cursor.getLong(COLUMN_ID));
+        getLoaderManager().restartLoader(LOADER_FIRST_PAGE + last, null, this);
+        mPages.add(null);
+        getLoaderManager().initLoader(LOADER_FIRST_PAGE + last + 1, null, this);
+    }
+
+    /**
+     * Destroy the loaders of all pages but the first, also those the loader manager kept from
+     * before the view or the fragment was recreated.
+     * @return whether there were any
+     */
+    private boolean destroyPageLoaders() {
+        LoaderManager loaderManager = getLoaderManager();
+        int id = LOADER_FIRST_PAGE + 1;
+        while (loaderManager.getLoader(id) != null) {
+            loaderManager.destroyLoader(id++);
+        }
+        return id > LOADER_FIRST_PAGE + 1;
+    }
+
+    /**
+     * Switch the list to another sort order, starting over with its first page.
+     */
+    private void setSort(String sort) {
+        if (sort.equals(mSort)) {
+            return;
+        }
+        mSort = sort;
+        PreferenceManager.getDefaultSharedPreferences(getActivity()).edit()
+                .putString(PREF_SORT, sort).commit();
+        destroyPageLoaders();
+        mPages.clear();
+        mPageEndKeys.clear();
+        mPageEndIds.clear();
+        mPages.add(null);
+        getLoaderManager().restartLoader(LOADER_FIRST_PAGE, null, this);
+        if (mOptionsMenu != null) {
+            checkSortItem(mOptionsMenu);
+        }
+    }
+
+    private void checkSortItem(Menu menu) {
+        int itemId;
+        if (MarkerContract.Marker.SORT_ADDRESS.equals(mSort)) {
+            itemId = R.id.menu_sort_address;
+        } else if (MarkerContract.Marker.SORT_RECENT.equals(mSort)) {
+            itemId = R.id.menu_sort_recent;
+        } else {
+            itemId = R.id.menu_sort_name;
+        }
+        MenuItem item = menu.findItem(itemId);
+        if (item != null) {
+            item.setChecked(true);
+        }
+    }
+
+    private final AbsListView.OnScrollListener mScrollListener =
+            new AbsListView.OnScrollListener() {
+        @Override
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+        }
+
+        @Override
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                             int totalItemCount) {
+            if (mQuery == null && firstVisibleItem + visibleItemCount
+                    >= totalItemCount - PAGE_SIZE / 2) {
+                loadNextPage();
+            }
+        }
+    };
+
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         super.onCreateOptionsMenu(menu, inflater);
         mOptionsMenu = menu;
         inflater.inflate(R.menu.main, menu);
+
+        MenuItem searchItem = menu.findItem(R.id.menu_search);
+        SearchView searchView = (SearchView) searchItem.getActionView();
+        searchView.setQueryHint(getText(R.string.search_hint));
+        searchView.setOnQueryTextListener(mQueryTextListener);
+        checkSortItem(menu);
     }
 
+    /**
+     * Requery the list on every keystroke, the full text index keeps that cheap.
+     */
+    private final SearchView.OnQueryTextListener mQueryTextListener =
+            new SearchView.OnQueryTextListener() {
+        @Override
+        public boolean onQueryTextSubmit(String query) {
+            return true;
+        }
+
+        @Override
+        public boolean onQueryTextChange(String newText) {
+            String query = TextUtils.isEmpty(newText) ? null : newText;
+            if (TextUtils.equals(query, mQuery)) {
+                return true;
+            }
+            mQuery = query;
+            if (query != null) {
+                getLoaderManager().restartLoader(LOADER_SEARCH, null, MainListFragment.this);
+            } else {
+                getLoaderManager().destroyLoader(LOADER_SEARCH);
+                showPages();
+            }
+            return true;
+        }
+    };
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_refresh:
                 SyncUtils.TriggerRefresh();
                 return true;
+            case R.id.menu_sort_name:
+                setSort(MarkerContract.Marker.SORT_NAME);
+                return true;
+            case R.id.menu_sort_address:
+                setSort(MarkerContract.Marker.SORT_ADDRESS);
+                return true;
+            case R.id.menu_sort_recent:
+                setSort(MarkerContract.Marker.SORT_RECENT);
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
@@ -153,7 +464,7 @@ public class MainListFragment extends ListFragment
     public void onListItemClick(ListView listView, View view, int position, long id) {
         super.onListItemClick(listView, view, position, id);
         Cursor c = (Cursor) mAdapter.getItem(position);
-        String latLngString = c.getString(COLUMN_LAT) + "," + c.getString(COLUMN_LNG);
+        String latLngString = c.getDouble(COLUMN_LAT) + "," + c.getDouble(COLUMN_LNG);
         String geoUrlString = "geo:" + latLngString;
         if (geoUrlString == null) {
             Log.e(TAG, "Attempt to launch entry with null link");
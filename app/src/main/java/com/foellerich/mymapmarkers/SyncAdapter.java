@@ -5,34 +5,101 @@ import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.SyncResult;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.foellerich.mymapmarkers.net.CountingInputStream;
+import com.foellerich.mymapmarkers.net.HttpStreams;
 import com.foellerich.mymapmarkers.net.MarkerParser;
+import com.foellerich.mymapmarkers.net.TeeInputStream;
 import com.foellerich.mymapmarkers.provider.MarkerContract;
+import com.foellerich.mymapmarkers.provider.Tiles;
+import com.foellerich.mymapmarkers.sync.MarkerMerger;
+import com.foellerich.mymapmarkers.sync.PipelinedFeedReader;
+import com.foellerich.mymapmarkers.sync.SyncTrace;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Created by foellerich on 27.04.2015.
  */
 public class SyncAdapter extends AbstractThreadedSyncAdapter {
     public static final String TAG = "MarkerSyncAdapter";
-    private static final String MARKER_URL = "https://mymapmarkers.herokuapp.com/markers";
+
+    /**
+     * Sync extra with the comma separated quadkeys of the tiles to fetch.
+     */
+    public static final String EXTRA_TILES = "tiles";
+
     private static final int NET_CONNECT_TIMEOUT_MILLIS = 15000; // 15 seconds
     private static final int NET_READ_TIMEOUT_MILLIS = 10000; // 10 seconds
+    private static final String QUERY_PARAMETER_SINCE = "since";
+    private static final String QUERY_PARAMETER_TILE = "tile";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+    private static final String HEADER_RANGE = "Range";
+    private static final String HEADER_IF_RANGE = "If-Range";
+    private static final String HEADER_CONTENT_RANGE = "Content-Range";
+    private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+    private static final String HEADER_ACCEPT = "Accept";
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final int MAX_DOWNLOAD_ATTEMPTS = 5; // resumes within one sync
+    private static final int SPOOL_BUFFER_SIZE = 8192;
+    private static final long MIN_BACKOFF_SECONDS = 30;
+    private static final long MAX_BACKOFF_SECONDS = 6 * 60 * 60; // 6 hours
+    private static final int MAX_BACKOFF_DOUBLINGS = 10;
+    private static final int MERGE_CHUNK_SIZE = 500; // operations per applyBatch
+    private static final int MERGE_YIELD_INTERVAL = 100; // operations between yield points
+    private static final int MERGE_DELETE_SET_SIZE = 10000; // deletes per set based delete
+    private static final int PIPELINE_CAPACITY = 4; // chunks parsed ahead of the merge
+    private static final int PIPELINE_MIN_BYTES = 64 * 1024; // smaller bodies are not pipelined
+    private static final int MAX_PARALLEL_SOURCES = 4; // sources synced at the same time
+
+    private static final Uri UPSERT_URI = MarkerContract.Marker.CONTENT_URI.buildUpon()
+            .appendQueryParameter(MarkerContract.QUERY_PARAMETER_UPSERT, "true")
+            .build();
+
+    /**
+     * History names of the {@link SyncTrace} phases, by phase.
+     */
+    private static final String[] HISTORY_PHASES = new String[] {
+            MarkerContract.SyncHistory.PHASE_CONNECT,
+            MarkerContract.SyncHistory.PHASE_DOWNLOAD,
+            MarkerContract.SyncHistory.PHASE_PARSE,
+            MarkerContract.SyncHistory.PHASE_QUERY,
+            MarkerContract.SyncHistory.PHASE_DIFF,
+            MarkerContract.SyncHistory.PHASE_APPLY,
+            MarkerContract.SyncHistory.PHASE_WAIT
+    };
 
     private final ContentResolver mContentResolver;
 
@@ -60,127 +127,1337 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
         Log.i(TAG, "Beginning sync");
+        final long syncStart = System.currentTimeMillis();
+        final SyncTrace trace = new SyncTrace();
+        final Source[] sources = loadSources();
+        String result = MarkerContract.SyncHistory.RESULT_ERROR;
         try {
-            final URL location = new URL(MARKER_URL);
-            InputStream stream = null;
-
-            try {
-                Log.i(TAG, "streaming data from Network: " + location);
-                stream = downloadUrl(location);
-                updateLocalData(stream, syncResult);
-
-            } finally {
-                if (stream != null) {
-                    stream.close();
+            // the tile sync covers the first source only
+            final String tiles = extras.getString(EXTRA_TILES);
+            if (tiles != null) {
+                result = syncTiles(sources[0], TextUtils.split(tiles, ","), false, syncResult,
+                        trace);
+            } else if (SyncUtils.isTileSyncEnabled(getContext())) {
+                result = refreshTiles(sources[0],
+                        extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false),
+                        syncResult, trace);
+            } else {
+                result = syncSources(account, sources, syncResult, trace);
+                if (!syncResult.hasError()) {
+                    updateSyncFrequency(account, sources, syncResult);
                 }
             }
         } catch (IOException e) {
-            Log.e(TAG, "Error reading from network: " + e.toString());
-            syncResult.stats.numParseExceptions++;
-            return;
+            recordError(syncResult, e);
         } catch (RemoteException e) {
-            Log.e(TAG, "Error updating database: " + e.toString());
-            syncResult.stats.numParseExceptions++;
-            return;
+            recordError(syncResult, e);
         } catch (OperationApplicationException e) {
-            Log.e(TAG, "Error updating database: " + e.toString());
+            recordError(syncResult, e);
+        } catch (SQLException e) {
+            recordError(syncResult, e);
+        } finally {
+            trace.finish();
+            recordHistory(syncStart, result, trace);
+            updateBackoff(account, syncResult);
+        }
+    }
+
+    /**
+     * Adapt the periodic sync to the rows this sync changed and the shortest freshness hint
+     * of the sources.
+     */
+    private void updateSyncFrequency(final Account account, final Source[] sources,
+                                     final SyncResult syncResult) {
+        long maxAge = -1;
+        for (Source source : sources) {
+            long sourceMaxAge = new SyncState(getContext(), account, source.name).getMaxAge();
+            if (sourceMaxAge >= 0 && (maxAge < 0 || sourceMaxAge < maxAge)) {
+                maxAge = sourceMaxAge;
+            }
+        }
+        SyncUtils.updateSyncFrequency(getContext(), syncResult.stats.numInserts
+                + syncResult.stats.numUpdates + syncResult.stats.numDeletes, maxAge);
+    }
+
+    /**
+     * Count a failure in the stats the sync manager decides on retries with: network errors
+     * are soft and retried, broken feeds and database errors are hard.
+     */
+    private static void recordError(final SyncResult syncResult, final Exception e) {
+        if (e instanceof FeedFormatException) {
+            Log.e(TAG, "Error parsing feed: " + e.toString());
             syncResult.stats.numParseExceptions++;
+        } else if (e instanceof IOException) {
+            Log.e(TAG, "Error reading from network: " + e.toString());
+            syncResult.stats.numIoExceptions++;
+        } else {
+            Log.e(TAG, "Error updating database: " + e.toString());
+            syncResult.databaseError = true;
+        }
+    }
+
+    /**
+     * Hold back the next sync of the account for {@value #MIN_BACKOFF_SECONDS} seconds after a
+     * failed sync, doubling with every further failure up to {@value #MAX_BACKOFF_SECONDS}
+     * seconds.
+     */
+    private void updateBackoff(final Account account, final SyncResult syncResult) {
+        final SyncState state = new SyncState(getContext(), account);
+        final int failures = state.getFailureCount();
+        if (!syncResult.hasError()) {
+            if (failures > 0) {
+                state.setFailureCount(0);
+            }
             return;
         }
+        state.setFailureCount(failures + 1);
+        final long delay = Math.min(MAX_BACKOFF_SECONDS,
+                MIN_BACKOFF_SECONDS << Math.min(failures, MAX_BACKOFF_DOUBLINGS));
+        syncResult.delayUntil = System.currentTimeMillis() / 1000 + delay;
+        Log.i(TAG, "Sync failed " + (failures + 1) + " times in a row, retrying in "
+                + delay + " s");
+    }
+
+    /**
+     * Sync all sources at once on up to {@value #MAX_PARALLEL_SOURCES} threads, each source
+     * with a diff of its own, so the sync takes about as long as its slowest source. A source
+     * that fails does not keep the others from being applied.
+     * @return one of the {@code RESULT_} constants of the sync history
+     */
+    private String syncSources(final Account account, final Source[] sources,
+                               final SyncResult syncResult, final SyncTrace trace) {
+        removeUnknownSources(sources, syncResult, trace);
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(sources.length, MAX_PARALLEL_SOURCES));
+        final List<Future<String>> futures = new ArrayList<Future<String>>(sources.length);
+        // results and traces are thread confined until their future is done
+        final SyncResult[] sourceResults = new SyncResult[sources.length];
+        final SyncTrace[] sourceTraces = new SyncTrace[sources.length];
+        try {
+            for (int i = 0; i < sources.length; i++) {
+                final Source source = sources[i];
+                final SyncResult sourceResult = new SyncResult();
+                final SyncTrace sourceTrace = new SyncTrace();
+                sourceResults[i] = sourceResult;
+                sourceTraces[i] = sourceTrace;
+                futures.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        SyncState state = new SyncState(getContext(), account, source.name);
+                        return syncSource(source, state, sourceResult, sourceTrace);
+                    }
+                }));
+            }
+
+            boolean modified = false;
+            boolean failed = false;
+            Error fatal = null;
+            for (int i = 0; i < sources.length; i++) {
+                try {
+                    modified |= MarkerContract.SyncHistory.RESULT_SUCCESS.equals(
+                            futures.get(i).get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    Log.e(TAG, "Error syncing source " + sources[i].name, cause);
+                    if (cause instanceof Error) {
+                        // rethrown once the other sources are in
+                        if (fatal == null) {
+                            fatal = (Error) cause;
+                        }
+                        syncResult.databaseError = true;
+                    } else {
+                        recordError(syncResult, (Exception) cause);
+                    }
+                    failed = true;
+                }
+                trace.add(sourceTraces[i]);
+                addStats(syncResult, sourceResults[i]);
+            }
+            if (fatal != null) {
+                throw fatal;
+            }
+            if (failed) {
+                return MarkerContract.SyncHistory.RESULT_ERROR;
+            }
+            return modified ? MarkerContract.SyncHistory.RESULT_SUCCESS
+                    : MarkerContract.SyncHistory.RESULT_NOT_MODIFIED;
+        } catch (InterruptedException e) {
+            Log.i(TAG, "Sync canceled");
+            Thread.currentThread().interrupt();
+            return MarkerContract.SyncHistory.RESULT_ERROR;
+        } finally {
+            // stops the sources still running if the sync was canceled
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Delete the markers of sources that are no longer configured.
+     */
+    private void removeUnknownSources(final Source[] sources, final SyncResult syncResult,
+                                      final SyncTrace trace) {
+        final String[] names = new String[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            names[i] = sources[i].name;
+        }
+        int phase = trace.enter(SyncTrace.PHASE_APPLY);
+        int count;
+        try {
+            count = mContentResolver.delete(MarkerContract.Marker.CONTENT_URI, "NOT " +
+                    buildInSelection(MarkerContract.Marker.COLUMN_NAME_SOURCE, names.length),
+                    names);
+        } finally {
+            trace.exit(phase);
+        }
+        trace.addOperations(SyncTrace.PHASE_APPLY, count);
+        syncResult.stats.numDeletes += count;
     }
 
-    private void updateLocalData(final InputStream stream, final SyncResult syncResult)
+    private static void addStats(final SyncResult to, final SyncResult from) {
+        to.stats.numEntries += from.stats.numEntries;
+        to.stats.numInserts += from.stats.numInserts;
+        to.stats.numUpdates += from.stats.numUpdates;
+        to.stats.numDeletes += from.stats.numDeletes;
+        to.stats.numIoExceptions += from.stats.numIoExceptions;
+        to.stats.numParseExceptions += from.stats.numParseExceptions;
+    }
+
+    /**
+     * Sync a source, falling back to JSON for good if its binary feed is too large to read.
+     * @return one of the {@code RESULT_} constants of the sync history
+     */
+    private String syncSource(final Source source, final SyncState state,
+                              final SyncResult syncResult, final SyncTrace trace)
             throws IOException, RemoteException, OperationApplicationException {
-        final MarkerParser markerParser = new MarkerParser();
-        final ContentResolver contentResolver = getContext().getContentResolver();
+        try {
+            return syncSourceFeed(source, state, syncResult, trace);
+        } catch (FeedFormatException e) {
+            if (!(e.getCause() instanceof MarkerParser.FeedTooLargeException)
+                    || state.isJsonOnly()) {
+                throw e;
+            }
+            // the server would send the same binary feed again on every sync
+            Log.w(TAG, "Binary feed of " + source.name + " too large, asking for JSON: "
+                    + e.getMessage());
+            state.setJsonOnly(true);
+            return syncSourceFeed(source, state, syncResult, trace);
+        }
+    }
+
+    /**
+     * Sync all markers of a source, as a delta if the server accepts the change token of the
+     * last sync.
+     *
+     * <p>A fresh response is parsed while it is written to a spool file, so the database
+     * writes overlap the download. If the connection drops, the spool holds what arrived: the
+     * rest is asked for with a range request and the feed is applied again from the file,
+     * which only writes what the first pass did not. A spool left behind by an earlier sync
+     * is resumed the same way before it is parsed.
+     * @return one of the {@code RESULT_} constants of the sync history
+     */
+    private String syncSourceFeed(final Source source, final SyncState state,
+                                  final SyncResult syncResult, final SyncTrace trace)
+            throws IOException, RemoteException, OperationApplicationException {
+        // an empty source has nothing the validators or the change token could refer to
+        final boolean hasLocalData = hasLocalData(source.name);
+        // checked after the query above, which may be what created and filled the database
+        if (MarkerContract.Marker.SOURCE_DEFAULT.equals(source.name)
+                && SyncUtils.takeBootstrap(getContext(), state)) {
+            Log.i(TAG, "Continuing from the bundled snapshot");
+        }
+        final String changeToken = hasLocalData ? state.getChangeToken() : null;
+        final File spool = new File(getContext().getCacheDir(), "spool-" + source.name);
+        final long start = SystemClock.elapsedRealtime();
+        URL location = buildUrl(source.url, changeToken);
+        Log.i(TAG, "streaming data from Network: " + location);
+        Response response = spool(location, hasLocalData ? state.getETag() : null,
+                hasLocalData ? state.getLastModified() : null, spool, state, trace, true);
+        if (changeToken != null && response.status == HttpURLConnection.HTTP_GONE) {
+            Log.i(TAG, "Change token rejected, falling back to full snapshot");
+            state.setChangeToken(null);
+            location = buildUrl(source.url, null);
+            response = spool(location, null, null, spool, state, trace, true);
+        }
+        if (response.status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            state.setMaxAge(response.maxAge);
+            Log.i(TAG, "Markers of " + source.name + " not modified since last sync");
+            return MarkerContract.SyncHistory.RESULT_NOT_MODIFIED;
+        }
+        if (response.status != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Unexpected response " + response.status + " from "
+                    + location);
+        }
+
+        String nextToken = null;
+        boolean applied = false;
+        if (response.body != null) {
+            boolean resume = false;
+            CountingInputStream decoded = null;
+            try {
+                decoded = new CountingInputStream(HttpStreams.decode(response.body,
+                        state.getSpoolEncoding()));
+                // the length is unknown for compressed and chunked bodies, which are the
+                // large ones
+                final int length = response.connection.getContentLength();
+                nextToken = updateLocalData(decoded, state.getSpoolContentType(), source.name,
+                        syncResult, trace, length < 0 || length >= PIPELINE_MIN_BYTES, null);
+                applied = true;
+                logTransfer(response.wire.getCount(), decoded.getCount(),
+                        SystemClock.elapsedRealtime() - start);
+            } catch (IOException e) {
+                if (!response.body.hasReadFailed()) {
+                    if (e instanceof InterruptedIOException) {
+                        throw e;
+                    }
+                    throw new FeedFormatException(e);
+                }
+                Log.w(TAG, "Download interrupted at byte " + response.wire.getCount()
+                        + ", resuming into the spool: " + e.toString());
+                resume = true;
+            } finally {
+                trace.addBytes(SyncTrace.PHASE_DOWNLOAD, response.wire.getCount());
+                if (decoded != null) {
+                    trace.addBytes(SyncTrace.PHASE_PARSE, decoded.getCount());
+                }
+                response.close();
+                if (!resume) {
+                    deleteSpool(spool, state);
+                }
+            }
+            if (resume) {
+                response = spool(location, null, null, spool, state, trace, false);
+                if (response.status != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("Unexpected response " + response.status + " from "
+                            + location);
+                }
+            }
+        }
+        if (!applied) {
+            nextToken = applySpool(spool, state, source, syncResult, trace, start);
+        }
+        state.setValidators(response.eTag, response.lastModified);
+        state.setChangeToken(nextToken);
+        state.setMaxAge(response.maxAge);
+        return MarkerContract.SyncHistory.RESULT_SUCCESS;
+    }
+
+    /**
+     * Apply a feed the spool file holds completely.
+     * @param start elapsed realtime the download started at
+     * @return token to request the next delta with, or null if the server sent none
+     */
+    private String applySpool(final File spool, final SyncState state, final Source source,
+                              final SyncResult syncResult, final SyncTrace trace,
+                              final long start)
+            throws IOException, RemoteException, OperationApplicationException {
+        final long wireBytes = spool.length();
+        InputStream stream = null;
+        try {
+            final CountingInputStream decoded = new CountingInputStream(HttpStreams.decode(
+                    new FileInputStream(spool), state.getSpoolEncoding()));
+            stream = decoded;
+            final boolean pipelined = wireBytes >= PIPELINE_MIN_BYTES;
+            String nextToken;
+            try {
+                nextToken = updateLocalData(stream, state.getSpoolContentType(), source.name,
+                        syncResult, trace, pipelined, null);
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                // the body is complete on disk, so this is the feed and not the network
+                throw new FeedFormatException(e);
+            } finally {
+                trace.addBytes(SyncTrace.PHASE_PARSE, decoded.getCount());
+            }
+            logTransfer(wireBytes, decoded.getCount(), SystemClock.elapsedRealtime() - start);
+            return nextToken;
+        } finally {
+            if (stream != null) {
+                stream.close();
+            }
+            // parsed or broken, a complete body is never resumed
+            deleteSpool(spool, state);
+        }
+    }
+
+    /**
+     * Download a feed into the spool file of its source.
+     *
+     * <p>A spool left behind by an earlier attempt at the same url is resumed with a range
+     * request, conditional on the version it holds. The download is resumed right away up to
+     * {@value #MAX_DOWNLOAD_ATTEMPTS} times as long as every attempt makes progress.
+     * @param eTag ETag to make the request conditional with, or null
+     * @param lastModified Last-Modified date to make the request conditional with, or null
+     * @param stream hand a fresh body to the caller as {@link Response#body}, which spools it
+     *               while it is read, instead of spooling it here
+     * @return the response, {@link HttpURLConnection#HTTP_OK} once the spool holds the whole
+     *         body or the body is handed on
+     */
+    private Response spool(final URL location, final String eTag, final String lastModified,
+                           final File spool, final SyncState state, final SyncTrace trace,
+                           final boolean stream)
+            throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            long offset = 0;
+            String ifRange = null;
+            if (spool.exists() && location.toString().equals(state.getSpoolUrl())
+                    && state.getSpoolValidator() != null) {
+                offset = spool.length();
+                ifRange = state.getSpoolValidator();
+            } else {
+                deleteSpool(spool, state);
+            }
+
+            HttpURLConnection conn = null;
+            long received = 0;
+            try {
+                int status;
+                int phase = trace.enter(SyncTrace.PHASE_CONNECT);
+                try {
+                    final String accept = state.isJsonOnly() ? MarkerParser.ACCEPT_JSON
+                            : MarkerParser.ACCEPT;
+                    // a resumed download already passed the conditions
+                    conn = ifRange != null
+                            ? downloadUrl(location, null, null, offset, ifRange, accept)
+                            : downloadUrl(location, eTag, lastModified, 0, null, accept);
+                    status = conn.getResponseCode();
+                } finally {
+                    trace.exit(phase);
+                }
+                boolean append;
+                if (status == HttpURLConnection.HTTP_PARTIAL && ifRange != null
+                        && getRangeStart(conn) == offset) {
+                    Log.i(TAG, "Resuming download at byte " + offset);
+                    append = true;
+                } else if (status == HttpURLConnection.HTTP_OK) {
+                    append = false;
+                    String validator = conn.getHeaderField(HEADER_ETAG);
+                    if (validator == null) {
+                        validator = conn.getHeaderField(HEADER_LAST_MODIFIED);
+                    }
+                    state.setSpool(location.toString(), validator, conn.getContentEncoding(),
+                            conn.getContentType());
+                    if (stream) {
+                        final Response response = new Response(status, conn);
+                        response.connection = conn;
+                        response.wire = new CountingInputStream(conn.getInputStream());
+                        response.body = new TeeInputStream(response.wire,
+                                new FileOutputStream(spool));
+                        // closed by the caller
+                        conn = null;
+                        return response;
+                    }
+                } else if (ifRange != null && (status == HTTP_RANGE_NOT_SATISFIABLE
+                        || status == HttpURLConnection.HTTP_PARTIAL)) {
+                    Log.i(TAG, "Spool cannot be resumed, starting over");
+                    deleteSpool(spool, state);
+                    continue;
+                } else {
+                    return new Response(status, conn);
+                }
+
+                final InputStream in = conn.getInputStream();
+                final OutputStream out = new FileOutputStream(spool, append);
+                phase = trace.enter(SyncTrace.PHASE_DOWNLOAD);
+                try {
+                    final byte[] buffer = new byte[SPOOL_BUFFER_SIZE];
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, n);
+                        received += n;
+                    }
+                } finally {
+                    trace.exit(phase);
+                    trace.addBytes(SyncTrace.PHASE_DOWNLOAD, received);
+                    out.close();
+                    in.close();
+                }
+                return new Response(HttpURLConnection.HTTP_OK, conn);
+            } catch (IOException e) {
+                if (received == 0 || attempt >= MAX_DOWNLOAD_ATTEMPTS) {
+                    throw e;
+                }
+                Log.w(TAG, "Download interrupted at byte " + spool.length() + ", resuming: "
+                        + e.toString());
+            } finally {
+                if (conn != null) {
+                    conn.disconnect();
+                }
+            }
+        }
+    }
 
-        Log.i(TAG, "parsing stream as JSON");
-        final List<MarkerParser.Entry> entries = markerParser.parse(stream);
-        Log.i(TAG, "Parsing complete. Found " + entries.size() + " entries");
+    /**
+     * @return first byte of a partial response, or -1 if it has no valid Content-Range
+     */
+    private static long getRangeStart(final HttpURLConnection conn) {
+        // bytes <first>-<last>/<length>
+        final String range = conn.getHeaderField(HEADER_CONTENT_RANGE);
+        if (range == null || !range.startsWith("bytes ")) {
+            return -1;
+        }
+        final int dash = range.indexOf('-');
+        try {
+            return dash < 0 ? -1 : Long.parseLong(range.substring(6, dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 
-        ArrayList<ContentProviderOperation> batch = new ArrayList<ContentProviderOperation>();
+    private static void deleteSpool(final File spool, final SyncState state) {
+        if (spool.exists() && !spool.delete()) {
+            Log.w(TAG, "Could not delete " + spool);
+        }
+        state.setSpool(null, null, null, null);
+    }
 
-        HashMap<String, MarkerParser.Entry> entryMap = new HashMap<String, MarkerParser.Entry>();
-        for (MarkerParser.Entry e : entries) {
-            entryMap.put(e.id, e);
+    /**
+     * Refresh the tiles that went stale and drop those that were not viewed for
+     * {@link Tiles#EVICT_AGE_MILLIS}, together with all markers outside of the remaining tiles.
+     * @param all refresh every tile, stale or not
+     * @return one of the {@code RESULT_} constants of the sync history
+     */
+    private String refreshTiles(final Source source, final boolean all,
+                                final SyncResult syncResult, final SyncTrace trace)
+            throws IOException, RemoteException, OperationApplicationException {
+        final long now = System.currentTimeMillis();
+        int phase = trace.enter(SyncTrace.PHASE_APPLY);
+        try {
+            mContentResolver.delete(MarkerContract.Tile.CONTENT_URI,
+                    MarkerContract.Tile.COLUMN_NAME_ACCESSED + "<?",
+                    new String[]{Long.toString(now - Tiles.EVICT_AGE_MILLIS)});
+            int evicted = mContentResolver.delete(MarkerContract.Marker.CONTENT_URI,
+                    MarkerContract.Marker.COLUMN_NAME_TILE + " IS NULL OR " +
+                            MarkerContract.Marker.COLUMN_NAME_TILE + " NOT IN (SELECT " +
+                            MarkerContract.Tile.COLUMN_NAME_QUADKEY + " FROM " +
+                            MarkerContract.Tile.TABLE_NAME + ")", null);
+            trace.addOperations(SyncTrace.PHASE_APPLY, evicted);
+            syncResult.stats.numDeletes += evicted;
+        } finally {
+            trace.exit(phase);
         }
 
-        Log.i(TAG, "Fetching local entries for merge");
-        Uri uri = MarkerContract.Marker.CONTENT_URI;
-        Cursor c = contentResolver.query(uri, PROJECTION, null, null, null);
+        final List<String> stale = new ArrayList<String>();
+        Cursor c = mContentResolver.query(MarkerContract.Tile.CONTENT_URI,
+                new String[]{MarkerContract.Tile.COLUMN_NAME_QUADKEY},
+                all ? null : MarkerContract.Tile.COLUMN_NAME_FETCHED + "<?",
+                all ? null : new String[]{Long.toString(now - Tiles.MAX_AGE_MILLIS)}, null);
         assert c != null;
-        Log.i(TAG, "Found " + c.getCount() + " local entries. Computing merge solution...");
-
-        int id;
-        String entryId;
-        String name;
-        String address;
-        double lat;
-        double lng;
-        while(c.moveToNext()) {
-            syncResult.stats.numEntries++;
-            id = c.getInt(COLUMN_ID);
-            entryId = c.getString(COLUMN_ENTRY_ID);
-            name = c.getString(COLUMN_NAME);
-            address = c.getString(COLUMN_ADDRESS);
-            lat = c.getDouble(COLUMN_LAT);
-            lng = c.getDouble(COLUMN_LNG);
-            MarkerParser.Entry match = entryMap.get(entryId);
-            if (match != null) {
-                entryMap.remove(entryId);
-                Uri existingUri = MarkerContract.Marker.CONTENT_URI.buildUpon()
-                        .appendPath(Integer.toString(id)).build();
-                if ((match.name != null && !match.name.equals(name)) ||
-                        (match.address != null && !match.address.equals(address)) ||
-                        (match.lat != lat) ||
-                        (match.lng != lng)) {
-                    Log.i(TAG, "Scheduling update: " + existingUri);
-                    batch.add(ContentProviderOperation.newUpdate(existingUri)
-                            .withValue(MarkerContract.Marker.COLUMN_NAME_NAME, match.name)
-                            .withValue(MarkerContract.Marker.COLUMN_NAME_ADDRESS, match.address)
-                            .withValue(MarkerContract.Marker.COLUMN_NAME_LAT, match.lat)
-                            .withValue(MarkerContract.Marker.COLUMN_NAME_LNG, match.lng)
-                            .build());
+        try {
+            while (c.moveToNext()) {
+                stale.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return syncTiles(source, stale.toArray(new String[stale.size()]), true, syncResult,
+                trace);
+    }
+
+    /**
+     * Fetch the markers of the given tiles.
+     * @param force fetch tiles which are not stale yet as well, otherwise they are skipped as
+     *              already fetched by an earlier request
+     * @return one of the {@code RESULT_} constants of the sync history
+     */
+    private String syncTiles(final Source source, final String[] quadKeys, final boolean force,
+                             final SyncResult syncResult, final SyncTrace trace)
+            throws IOException, RemoteException, OperationApplicationException {
+        final long now = System.currentTimeMillis();
+        String result = MarkerContract.SyncHistory.RESULT_NOT_MODIFIED;
+        for (String quadKey : quadKeys) {
+            String eTag = null;
+            long fetched = 0;
+            Cursor c = mContentResolver.query(MarkerContract.Tile.CONTENT_URI, new String[]{
+                            MarkerContract.Tile.COLUMN_NAME_ETAG,
+                            MarkerContract.Tile.COLUMN_NAME_FETCHED},
+                    MarkerContract.Tile.COLUMN_NAME_QUADKEY + "=?", new String[]{quadKey},
+                    null);
+            assert c != null;
+            try {
+                if (c.moveToFirst()) {
+                    eTag = c.getString(0);
+                    fetched = c.getLong(1);
+                }
+            } finally {
+                c.close();
+            }
+            if (!force && fetched > now - Tiles.MAX_AGE_MILLIS) {
+                continue;
+            }
+            if (fetchTile(source, quadKey, eTag, syncResult, trace)) {
+                result = MarkerContract.SyncHistory.RESULT_SUCCESS;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Merge the markers of one tile and mark it as fetched.
+     * @param eTag ETag of the last fetch of the tile, or null
+     * @return false if the tile was not modified since the last fetch
+     */
+    private boolean fetchTile(final Source source, final String quadKey, final String eTag,
+                              final SyncResult syncResult, final SyncTrace trace)
+            throws IOException, RemoteException, OperationApplicationException {
+        HttpURLConnection conn = null;
+        InputStream stream = null;
+        try {
+            URL location = buildTileUrl(source.url, quadKey);
+            Log.i(TAG, "streaming tile from Network: " + location);
+            int phase = trace.enter(SyncTrace.PHASE_CONNECT);
+            try {
+                conn = downloadUrl(location, eTag, null);
+                conn.getResponseCode();
+            } finally {
+                trace.exit(phase);
+            }
+            if (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                markTileFetched(quadKey, eTag);
+                return false;
+            }
+            final CountingInputStream wire = new CountingInputStream(conn.getInputStream());
+            final CountingInputStream decoded = new CountingInputStream(
+                    HttpStreams.decode(wire, conn.getContentEncoding()));
+            stream = decoded;
+            try {
+                updateLocalData(stream, conn.getContentType(), source.name, syncResult, trace,
+                        false, quadKey);
+            } finally {
+                trace.addBytes(SyncTrace.PHASE_DOWNLOAD, wire.getCount());
+                trace.addBytes(SyncTrace.PHASE_PARSE, decoded.getCount());
+            }
+            markTileFetched(quadKey, conn.getHeaderField(HEADER_ETAG));
+            return true;
+        } finally {
+            if (stream != null) {
+                stream.close();
+            }
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    private void markTileFetched(final String quadKey, final String eTag) {
+        final long now = System.currentTimeMillis();
+        ContentValues values = new ContentValues();
+        values.put(MarkerContract.Tile.COLUMN_NAME_FETCHED, now);
+        values.put(MarkerContract.Tile.COLUMN_NAME_ETAG, eTag);
+        int updated = mContentResolver.update(MarkerContract.Tile.CONTENT_URI, values,
+                MarkerContract.Tile.COLUMN_NAME_QUADKEY + "=?", new String[]{quadKey});
+        if (updated == 0) {
+            // prefetched, counts as accessed so it is not evicted right away
+            values.put(MarkerContract.Tile.COLUMN_NAME_QUADKEY, quadKey);
+            values.put(MarkerContract.Tile.COLUMN_NAME_ACCESSED, now);
+            mContentResolver.insert(MarkerContract.Tile.CONTENT_URI, values);
+        }
+    }
+
+    /**
+     * Store the phases of a finished sync in the sync history. Losing a history entry must
+     * not fail the sync, so errors are only logged.
+     */
+    private void recordHistory(long syncStart, String result, SyncTrace trace) {
+        final ContentValues[] rows = new ContentValues[SyncTrace.NUM_PHASES + 1];
+        long entries = trace.getEntries(SyncTrace.PHASE_PARSE);
+        long operations = trace.getOperations(SyncTrace.PHASE_APPLY);
+        rows[0] = buildHistoryRow(syncStart, result, MarkerContract.SyncHistory.PHASE_TOTAL,
+                trace.getTotalMillis(), trace.getBytes(SyncTrace.PHASE_DOWNLOAD),
+                entries, operations);
+        // the parse phase counts the bytes after the decoder
+        rows[0].put(MarkerContract.SyncHistory.COLUMN_NAME_DECODED_BYTES,
+                trace.getBytes(SyncTrace.PHASE_PARSE));
+        for (int phase = 0; phase < SyncTrace.NUM_PHASES; phase++) {
+            rows[phase + 1] = buildHistoryRow(syncStart, result, HISTORY_PHASES[phase],
+                    trace.getMillis(phase), trace.getBytes(phase), trace.getEntries(phase),
+                    trace.getOperations(phase));
+        }
+        Log.i(TAG, "Sync " + result + " in " + trace.getTotalMillis() + " ms: " + entries
+                + " entries, " + operations + " operations");
+        try {
+            mContentResolver.bulkInsert(MarkerContract.SyncHistory.CONTENT_URI, rows);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Error recording sync history: " + e.toString());
+        }
+    }
+
+    private static ContentValues buildHistoryRow(long syncStart, String result, String phase,
+                                                 long duration, long bytes, long entries,
+                                                 long operations) {
+        ContentValues row = new ContentValues();
+        row.put(MarkerContract.SyncHistory.COLUMN_NAME_SYNC_START, syncStart);
+        row.put(MarkerContract.SyncHistory.COLUMN_NAME_APP_VERSION, BuildConfig.VERSION_CODE);
+        row.put(MarkerContract.SyncHistory.COLUMN_NAME_RESULT, result);
+        row.put(MarkerContract.SyncHistory.COLUMN_NAME_PHASE, phase);
+        row.put(MarkerContract.SyncHistory.COLUMN_NAME_DURATION, duration);
+        row.put(MarkerContract.SyncHistory.COLUMN_NAME_BYTES, bytes);
+        row.put(MarkerContract.SyncHistory.COLUMN_NAME_ENTRIES, entries);
+        row.put(MarkerContract.SyncHistory.COLUMN_NAME_OPERATIONS, operations);
+        return row;
+    }
+
+    /**
+     * Apply a snapshot or delta feed to the local table.
+     *
+     * <p>Pipelined, the feed is read and parsed on a thread of its own, up to
+     * {@value #PIPELINE_CAPACITY} chunks ahead, while this thread writes the chunks already
+     * parsed. Otherwise the parser blocks on every write.
+     * @param contentType Content-Type of the feed, picks the parser
+     * @param source name of the source the feed comes from
+     * @param tile quadkey of the tile the feed covers, or null if it covers all markers
+     * @return token to request the next delta with, or null if the server sent none
+     */
+    private String updateLocalData(final InputStream stream, final String contentType,
+                                   final String source, final SyncResult syncResult,
+                                   final SyncTrace trace, final boolean pipelined,
+                                   final String tile)
+            throws IOException, RemoteException, OperationApplicationException {
+        final MarkerParser markerParser = new MarkerParser(true);
+        // a trace is only written by one thread, the producer gets its own
+        final SyncTrace feedTrace = pipelined ? new SyncTrace() : trace;
+        final MarkerParser.FeedReader reader;
+        if (pipelined) {
+            reader = new PipelinedFeedReader(
+                    markerParser.open(feedTrace.wrap(stream, SyncTrace.PHASE_DOWNLOAD),
+                            contentType),
+                    MERGE_CHUNK_SIZE, PIPELINE_CAPACITY, feedTrace);
+        } else {
+            reader = markerParser.open(feedTrace.wrap(stream, SyncTrace.PHASE_DOWNLOAD),
+                    contentType);
+        }
+        final int phase = trace.enter(pipelined ? SyncTrace.PHASE_WAIT : SyncTrace.PHASE_PARSE);
+        try {
+            int section;
+            while ((section = reader.nextSection()) != MarkerParser.FeedReader.SECTION_END) {
+                switch (section) {
+                    case MarkerParser.FeedReader.SECTION_MARKERS:
+                        mergeSnapshot(reader, source, syncResult, trace, tile);
+                        break;
+                    case MarkerParser.FeedReader.SECTION_CHANGED:
+                        applyChanged(reader, source, syncResult, trace);
+                        break;
+                    case MarkerParser.FeedReader.SECTION_DELETED:
+                        applyDeleted(reader, source, syncResult, trace);
+                        break;
+                }
+            }
+        } finally {
+            trace.exit(phase);
+            reader.close();
+            if (pipelined) {
+                trace.add(feedTrace);
+            }
+        }
+        return reader.getNextToken();
+    }
+
+    /**
+     * Merge a full snapshot, deleting every local row of the source the snapshot does not
+     * contain.
+     * @param tile quadkey of the tile the snapshot covers, or null if it covers all markers
+     */
+    private void mergeSnapshot(final MarkerParser.FeedReader reader, final String source,
+                               final SyncResult syncResult, final SyncTrace trace,
+                               final String tile)
+            throws IOException, RemoteException, OperationApplicationException {
+        final ContentResolver contentResolver = getContext().getContentResolver();
+
+        // rows without a server id can never be matched by the merge
+        int phase;
+        if (tile == null) {
+            phase = trace.enter(SyncTrace.PHASE_APPLY);
+            int orphans;
+            try {
+                orphans = contentResolver.delete(MarkerContract.Marker.CONTENT_URI,
+                        MarkerContract.Marker.COLUMN_NAME_SOURCE + "=? AND " +
+                                MarkerContract.Marker.COLUMN_NAME_ENTRY_ID + " IS NULL",
+                        new String[]{source});
+            } finally {
+                trace.exit(phase);
+            }
+            trace.addOperations(SyncTrace.PHASE_APPLY, orphans);
+            syncResult.stats.numDeletes += orphans;
+        }
+
+        Log.i(TAG, "Streaming merge of feed against local entries");
+        final BatchOperations batch = new BatchOperations(source, trace);
+        final LocalMarkerPager local =
+                new LocalMarkerPager(contentResolver, MERGE_CHUNK_SIZE, trace, source, tile);
+        final MarkerMerger merger = new MarkerMerger(local, batch);
+        try {
+            MarkerParser.Entry entry;
+            while ((entry = reader.nextEntry()) != null) {
+                trace.addEntries(SyncTrace.PHASE_PARSE, 1);
+                phase = trace.enter(SyncTrace.PHASE_DIFF);
+                try {
+                    merger.merge(entry);
+                } finally {
+                    trace.exit(phase);
+                }
+                if (batch.size() >= MERGE_CHUNK_SIZE) {
+                    batch.apply();
+                }
+            }
+            if (merger.getNumUnordered() > 0) {
+                Log.w(TAG, merger.getNumUnordered() + " markers out of order in feed");
+            }
+            phase = trace.enter(SyncTrace.PHASE_DIFF);
+            try {
+                // its inserts of unordered entries must follow the deletes, see applyAll()
+                merger.finish();
+            } finally {
+                trace.exit(phase);
+            }
+            batch.applyAll();
+        } finally {
+            local.close();
+        }
+
+        trace.addEntries(SyncTrace.PHASE_DIFF, merger.getNumEntries());
+        trace.addOperations(SyncTrace.PHASE_DIFF, merger.getNumInserts()
+                + merger.getNumUpdates() + merger.getNumDeletes());
+        syncResult.stats.numEntries += merger.getNumEntries();
+        syncResult.stats.numInserts += merger.getNumInserts();
+        syncResult.stats.numUpdates += merger.getNumUpdates();
+        syncResult.stats.numDeletes += merger.getNumDeletes();
+        Log.i(TAG, "Merge complete: " + merger.getNumInserts() + " inserts, "
+                + merger.getNumUpdates() + " updates, " + merger.getNumDeletes() + " deletes");
+    }
+
+    /**
+     * Insert or update the markers of a delta's {@code changed} section.
+     */
+    private void applyChanged(final MarkerParser.FeedReader reader, final String source,
+                              final SyncResult syncResult, final SyncTrace trace)
+            throws IOException, RemoteException, OperationApplicationException {
+        final BatchOperations batch = new BatchOperations(source, trace);
+        final HashMap<String, MarkerParser.Entry> chunk =
+                new HashMap<String, MarkerParser.Entry>();
+        MarkerParser.Entry entry;
+        while ((entry = reader.nextEntry()) != null) {
+            if (entry.id == null) {
+                throw new IOException("Marker without _id in feed");
+            }
+            trace.addEntries(SyncTrace.PHASE_PARSE, 1);
+            chunk.put(entry.id, entry);
+            if (chunk.size() >= MERGE_CHUNK_SIZE) {
+                applyChangedChunk(chunk, source, batch, syncResult, trace);
+            }
+        }
+        applyChangedChunk(chunk, source, batch, syncResult, trace);
+    }
+
+    private void applyChangedChunk(final HashMap<String, MarkerParser.Entry> chunk,
+                                   final String source, final BatchOperations batch,
+                                   final SyncResult syncResult, final SyncTrace trace)
+            throws RemoteException, OperationApplicationException {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        String[] ids = chunk.keySet().toArray(new String[chunk.size()]);
+        int phase = trace.enter(SyncTrace.PHASE_QUERY);
+        Cursor c;
+        try {
+            c = mContentResolver.query(MarkerContract.Marker.CONTENT_URI, PROJECTION,
+                    buildSourceInSelection(MarkerContract.Marker.COLUMN_NAME_ENTRY_ID,
+                            ids.length),
+                    buildSourceArgs(source, ids), null);
+            assert c != null;
+            trace.addEntries(SyncTrace.PHASE_QUERY, c.getCount());
+        } finally {
+            trace.exit(phase);
+        }
+        phase = trace.enter(SyncTrace.PHASE_DIFF);
+        try {
+            while (c.moveToNext()) {
+                MarkerParser.Entry match = chunk.remove(c.getString(COLUMN_ENTRY_ID));
+                if (match != null) {
+                    batch.update(c.getLong(COLUMN_ID), match);
                     syncResult.stats.numUpdates++;
-                } else {
-                    Log.i(TAG, "No action: " + existingUri);
                 }
-            } else {
-                Uri deleteUri = MarkerContract.Marker.CONTENT_URI.buildUpon()
-                        .appendPath(Integer.toString(id)).build();
-                Log.i(TAG, "Scheduling delete: " + deleteUri);
-                batch.add(ContentProviderOperation.newDelete(deleteUri).build());
-                syncResult.stats.numDeletes++;
+            }
+        } finally {
+            c.close();
+            trace.exit(phase);
+        }
+        for (MarkerParser.Entry e : chunk.values()) {
+            batch.insert(e);
+            syncResult.stats.numInserts++;
+        }
+        trace.addEntries(SyncTrace.PHASE_DIFF, ids.length);
+        trace.addOperations(SyncTrace.PHASE_DIFF, batch.size());
+        syncResult.stats.numEntries += ids.length;
+        batch.apply();
+        chunk.clear();
+    }
+
+    /**
+     * Delete the markers listed in a delta's {@code deleted} section.
+     */
+    private void applyDeleted(final MarkerParser.FeedReader reader, final String source,
+                              final SyncResult syncResult, final SyncTrace trace)
+            throws IOException {
+        final ArrayList<String> chunk = new ArrayList<String>(MERGE_CHUNK_SIZE);
+        String id;
+        while ((id = reader.nextDeletedId()) != null) {
+            trace.addEntries(SyncTrace.PHASE_PARSE, 1);
+            chunk.add(id);
+            if (chunk.size() >= MERGE_CHUNK_SIZE) {
+                applyDeletedChunk(chunk, source, syncResult, trace);
             }
         }
-        c.close();
+        applyDeletedChunk(chunk, source, syncResult, trace);
+    }
+
+    private void applyDeletedChunk(final ArrayList<String> chunk, final String source,
+                                   final SyncResult syncResult, final SyncTrace trace) {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        int phase = trace.enter(SyncTrace.PHASE_APPLY);
+        int count;
+        try {
+            count = mContentResolver.delete(
+                    MarkerContract.Marker.CONTENT_URI,
+                    buildSourceInSelection(MarkerContract.Marker.COLUMN_NAME_ENTRY_ID,
+                            chunk.size()),
+                    buildSourceArgs(source, chunk.toArray(new String[chunk.size()])));
+        } finally {
+            trace.exit(phase);
+        }
+        trace.addOperations(SyncTrace.PHASE_APPLY, count);
+        syncResult.stats.numDeletes += count;
+        chunk.clear();
+    }
+
+    private static String buildInSelection(final String column, final int count) {
+        StringBuilder selection = new StringBuilder(column).append(" IN (");
+        for (int i = 0; i < count; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        return selection.append(")").toString();
+    }
+
+    /**
+     * Selection of the rows of one source with {@code column} in a list, for the arguments
+     * of {@link #buildSourceArgs(String, String[])}.
+     */
+    private static String buildSourceInSelection(final String column, final int count) {
+        return MarkerContract.Marker.COLUMN_NAME_SOURCE + "=? AND "
+                + buildInSelection(column, count);
+    }
+
+    private static String[] buildSourceArgs(final String source, final String[] values) {
+        String[] args = new String[values.length + 1];
+        args[0] = source;
+        System.arraycopy(values, 0, args, 1, values.length);
+        return args;
+    }
+
+    /**
+     * Collects the operations of the merge until the next {@link #apply()}.
+     *
+     * <p>Inserts go through the provider's upsert, so a row that appeared since the merge
+     * read the local table updates that row instead of failing the whole batch on the unique
+     * source and marker id.
+     *
+     * <p>Deletes are collected as a set of _ids instead, up to
+     * {@value #MERGE_DELETE_SET_SIZE} of them, and removed by a single statement of
+     * {@link MarkerContract#METHOD_DELETE_IDS}. Pruning a snapshot that lost tens of
+     * thousands of markers takes a few statements instead of one operation per row.
+     */
+    private class BatchOperations implements MarkerMerger.Operations {
+        private final ArrayList<ContentProviderOperation> mBatch =
+                new ArrayList<ContentProviderOperation>(MERGE_CHUNK_SIZE);
+        private long[] mDeletes = new long[MERGE_CHUNK_SIZE];
+        private int mNumDeletes = 0;
+        private final String mSource;
+        private final SyncTrace mTrace;
+
+        BatchOperations(String source, SyncTrace trace) {
+            mSource = source;
+            mTrace = trace;
+        }
+
+        @Override
+        public void insert(MarkerParser.Entry e) {
+            add(ContentProviderOperation.newInsert(UPSERT_URI)
+                    .withValue(MarkerContract.Marker.COLUMN_NAME_SOURCE, mSource)
+                    .withValue(MarkerContract.Marker.COLUMN_NAME_ENTRY_ID, e.id)
+                    .withValue(MarkerContract.Marker.COLUMN_NAME_NAME, e.name)
+                    .withValue(MarkerContract.Marker.COLUMN_NAME_ADDRESS, e.address)
+                    .withValue(MarkerContract.Marker.COLUMN_NAME_LAT, e.lat)
+                    .withValue(MarkerContract.Marker.COLUMN_NAME_LNG, e.lng));
+        }
 
-        for (MarkerParser.Entry e : entryMap.values()) {
-            Log.i(TAG, "Scheduling insert: entry_id=" + e.id);
-            batch.add(ContentProviderOperation.newInsert(MarkerContract.Marker.CONTENT_URI)
+        @Override
+        public void update(long id, MarkerParser.Entry e) {
+            Uri existingUri = MarkerContract.Marker.CONTENT_URI.buildUpon()
+                    .appendPath(Long.toString(id)).build();
+            add(ContentProviderOperation.newUpdate(existingUri)
                     .withValue(MarkerContract.Marker.COLUMN_NAME_NAME, e.name)
                     .withValue(MarkerContract.Marker.COLUMN_NAME_ADDRESS, e.address)
                     .withValue(MarkerContract.Marker.COLUMN_NAME_LAT, e.lat)
-                    .withValue(MarkerContract.Marker.COLUMN_NAME_LNG, e.lng)
+                    .withValue(MarkerContract.Marker.COLUMN_NAME_LNG, e.lng));
+        }
+
+        @Override
+        public void delete(long id) {
+            if (mNumDeletes == mDeletes.length) {
+                mDeletes = Arrays.copyOf(mDeletes, mDeletes.length * 2);
+            }
+            mDeletes[mNumDeletes++] = id;
+        }
+
+        /**
+         * Allow the provider to commit and let readers in before every
+         * {@value #MERGE_YIELD_INTERVAL}th operation.
+         */
+        private void add(ContentProviderOperation.Builder builder) {
+            int size = mBatch.size();
+            mBatch.add(builder
+                    .withYieldAllowed(size > 0 && size % MERGE_YIELD_INTERVAL == 0)
                     .build());
-            syncResult.stats.numInserts++;
         }
-        Log.i(TAG, "Merge solution ready. Applying batch update");
-        mContentResolver.applyBatch(MarkerContract.CONTENT_AUTHORITY, batch);
-        mContentResolver.notifyChange(
-                MarkerContract.Marker.CONTENT_URI,
-                null,
-                false
-        );
+
+        /**
+         * @return number of inserts and updates collected, the deletes are applied apart
+         */
+        public int size() {
+            return mBatch.size();
+        }
+
+        /**
+         * Apply the inserts and updates collected, and the deletes once there are enough of
+         * them.
+         */
+        public void apply() throws RemoteException, OperationApplicationException {
+            if (mNumDeletes >= MERGE_DELETE_SET_SIZE) {
+                applyDeletes();
+            }
+            if (mBatch.isEmpty()) {
+                return;
+            }
+            Log.i(TAG, "Applying batch of " + mBatch.size() + " operations");
+            int phase = mTrace.enter(SyncTrace.PHASE_APPLY);
+            try {
+                mContentResolver.applyBatch(MarkerContract.CONTENT_AUTHORITY, mBatch);
+            } finally {
+                mTrace.exit(phase);
+            }
+            mTrace.addOperations(SyncTrace.PHASE_APPLY, mBatch.size());
+            mBatch.clear();
+        }
+
+        /**
+         * Apply all operations collected, the deletes first.
+         */
+        public void applyAll() throws RemoteException, OperationApplicationException {
+            applyDeletes();
+            apply();
+        }
+
+        private void applyDeletes() {
+            if (mNumDeletes == 0) {
+                return;
+            }
+            Log.i(TAG, "Deleting " + mNumDeletes + " markers");
+            Bundle extras = new Bundle();
+            extras.putLongArray(MarkerContract.EXTRA_IDS, Arrays.copyOf(mDeletes, mNumDeletes));
+            int phase = mTrace.enter(SyncTrace.PHASE_APPLY);
+            try {
+                mContentResolver.call(MarkerContract.Marker.CONTENT_URI,
+                        MarkerContract.METHOD_DELETE_IDS, null, extras);
+            } finally {
+                mTrace.exit(phase);
+            }
+            mTrace.addOperations(SyncTrace.PHASE_APPLY, mNumDeletes);
+            mNumDeletes = 0;
+        }
+    }
+
+    /**
+     * Reads the local rows of a source ordered by marker id, one page at a time.
+     *
+     * <p>Pages are keyed on the last marker id seen instead of an offset, so the writes of
+     * already applied chunks (which only touch ids up to that key) never shift the next page.
+     * Restricted to a tile, the pages come from the index on tile and marker id.
+     */
+    private static class LocalMarkerPager implements MarkerMerger.LocalMarkers {
+        private final ContentResolver mResolver;
+        private final Uri mPageUri;
+        private final int mPageSize;
+        private final SyncTrace mTrace;
+        private final String mSource;
+        private final String mTile;
+        private Cursor mCursor = null;
+        private String mLastEntryId = null;
+        private boolean mExhausted = false;
+
+        LocalMarkerPager(ContentResolver resolver, int pageSize, SyncTrace trace, String source,
+                         String tile) {
+            mResolver = resolver;
+            mPageSize = pageSize;
+            mTrace = trace;
+            mSource = source;
+            mTile = tile;
+            mPageUri = MarkerContract.Marker.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(MarkerContract.QUERY_PARAMETER_LIMIT,
+                            Integer.toString(pageSize))
+                    .build();
+        }
+
+        @Override
+        public boolean moveToNext() {
+            if (mCursor != null && mCursor.moveToNext()) {
+                mLastEntryId = mCursor.getString(COLUMN_ENTRY_ID);
+                return true;
+            }
+            if (mExhausted) {
+                return false;
+            }
+            boolean lastPageFull = mCursor == null || mCursor.getCount() == mPageSize;
+            close();
+            if (!lastPageFull) {
+                mExhausted = true;
+                return false;
+            }
+            StringBuilder selection =
+                    new StringBuilder(MarkerContract.Marker.COLUMN_NAME_SOURCE).append("=?");
+            ArrayList<String> selectionArgs = new ArrayList<String>(3);
+            selectionArgs.add(mSource);
+            if (mTile != null) {
+                selection.append(" AND ").append(MarkerContract.Marker.COLUMN_NAME_TILE)
+                        .append("=?");
+                selectionArgs.add(mTile);
+            }
+            if (mLastEntryId != null) {
+                selection.append(" AND ").append(MarkerContract.Marker.COLUMN_NAME_ENTRY_ID)
+                        .append(">?");
+                selectionArgs.add(mLastEntryId);
+            }
+            int phase = mTrace.enter(SyncTrace.PHASE_QUERY);
+            try {
+                mCursor = mResolver.query(mPageUri, PROJECTION, selection.toString(),
+                        selectionArgs.toArray(new String[selectionArgs.size()]),
+                        MarkerContract.Marker.COLUMN_NAME_ENTRY_ID);
+                assert mCursor != null;
+                mTrace.addEntries(SyncTrace.PHASE_QUERY, mCursor.getCount());
+            } finally {
+                mTrace.exit(phase);
+            }
+            if (mCursor.moveToNext()) {
+                mLastEntryId = mCursor.getString(COLUMN_ENTRY_ID);
+                return true;
+            }
+            mExhausted = true;
+            return false;
+        }
+
+        @Override
+        public long getId() {
+            return mCursor.getLong(COLUMN_ID);
+        }
+
+        @Override
+        public String getEntryId() {
+            return mCursor.getString(COLUMN_ENTRY_ID);
+        }
+
+        @Override
+        public String getName() {
+            return mCursor.getString(COLUMN_NAME);
+        }
+
+        @Override
+        public String getAddress() {
+            return mCursor.getString(COLUMN_ADDRESS);
+        }
+
+        @Override
+        public double getLat() {
+            return mCursor.getDouble(COLUMN_LAT);
+        }
+
+        @Override
+        public double getLng() {
+            return mCursor.getDouble(COLUMN_LNG);
+        }
+
+        public void close() {
+            if (mCursor != null) {
+                mCursor.close();
+                mCursor = null;
+            }
+        }
+    }
+
+    /**
+     * @param sourceUrl location of the markers of the source
+     * @param changeToken token of the last applied feed to request a delta, or null for a
+     *                    full snapshot
+     */
+    private static URL buildUrl(final String sourceUrl, final String changeToken)
+            throws IOException {
+        if (changeToken == null) {
+            return new URL(sourceUrl);
+        }
+        return new URL(Uri.parse(sourceUrl).buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_SINCE, changeToken)
+                .build().toString());
+    }
+
+    private static URL buildTileUrl(final String sourceUrl, final String quadKey)
+            throws IOException {
+        return new URL(Uri.parse(sourceUrl).buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_TILE, quadKey)
+                .build().toString());
+    }
+
+    /**
+     * Report what the sync cost on the wire. Parsing and merging run while the response is
+     * streamed, so the elapsed time covers both.
+     */
+    private static void logTransfer(long wireBytes, long decodedBytes, long elapsedMillis) {
+        long kibPerSecond = elapsedMillis > 0 ? wireBytes * 1000 / 1024 / elapsedMillis : 0;
+        Log.i(TAG, "Downloaded " + wireBytes + " bytes (" + decodedBytes + " decoded) in "
+                + elapsedMillis + " ms, " + kibPerSecond + " KiB/s");
     }
 
-    private InputStream downloadUrl(final URL url) throws IOException {
+    private boolean hasLocalData(final String source) {
+        Uri uri = MarkerContract.Marker.CONTENT_URI.buildUpon()
+                .appendQueryParameter(MarkerContract.QUERY_PARAMETER_LIMIT, "1")
+                .build();
+        Cursor c = mContentResolver.query(uri, new String[]{MarkerContract.Marker._ID},
+                MarkerContract.Marker.COLUMN_NAME_SOURCE + "=?", new String[]{source}, null);
+        assert c != null;
+        try {
+            return c.getCount() > 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Open a GET request to the given url.
+     * @param url location of the markers
+     * @param eTag ETag of the last applied response to make the request conditional, or null
+     * @param lastModified Last-Modified date of the last applied response to make the request
+     *                     conditional, or null
+     * @return connected request, the caller has to check for {@code 304 Not Modified}
+     */
+    private HttpURLConnection downloadUrl(final URL url, final String eTag,
+                                          final String lastModified)
+            throws IOException {
+        return downloadUrl(url, eTag, lastModified, 0, null, MarkerParser.ACCEPT);
+    }
+
+    /**
+     * Open a GET request to the given url, from {@code offset} on.
+     * @param ifRange validator of the bytes before {@code offset}, the whole body is sent if it
+     *                no longer matches
+     * @param accept Accept header offering the feed formats to pick from
+     */
+    private HttpURLConnection downloadUrl(final URL url, final String eTag,
+                                          final String lastModified, final long offset,
+                                          final String ifRange, final String accept)
+            throws IOException {
         HttpURLConnection conn = (HttpURLConnection) url.openConnection();
         conn.setReadTimeout(NET_READ_TIMEOUT_MILLIS);
         conn.setConnectTimeout(NET_CONNECT_TIMEOUT_MILLIS);
         conn.setRequestMethod("GET");
         conn.setDoInput(true);
+        conn.setRequestProperty(HttpStreams.HEADER_ACCEPT_ENCODING, HttpStreams.ACCEPT_ENCODING);
+        conn.setRequestProperty(HEADER_ACCEPT, accept);
+        if (eTag != null) {
+            conn.setRequestProperty(HEADER_IF_NONE_MATCH, eTag);
+        }
+        if (lastModified != null) {
+            conn.setRequestProperty(HEADER_IF_MODIFIED_SINCE, lastModified);
+        }
+        if (offset > 0) {
+            conn.setRequestProperty(HEADER_RANGE, "bytes=" + offset + "-");
+            conn.setRequestProperty(HEADER_IF_RANGE, ifRange);
+        }
         conn.connect();
-        return conn.getInputStream();
+        return conn;
+    }
+
+    /**
+     * @return the configured sources, at least one
+     */
+    private Source[] loadSources() {
+        final Context context = getContext();
+        assert context != null;
+        final String[] names = context.getResources().getStringArray(R.array.sync_source_names);
+        final String[] urls = context.getResources().getStringArray(R.array.sync_source_urls);
+        if (names.length == 0 || names.length != urls.length) {
+            throw new IllegalStateException("Sync sources misconfigured: " + names.length
+                    + " names for " + urls.length + " urls");
+        }
+        final Source[] sources = new Source[names.length];
+        for (int i = 0; i < names.length; i++) {
+            sources[i] = new Source(names[i], urls[i]);
+        }
+        return sources;
+    }
+
+    /**
+     * A marker feed, configured in {@code res/values/sync_sources.xml}.
+     */
+    private static class Source {
+        final String name;
+        final String url;
+
+        Source(String name, String url) {
+            this.name = name;
+            this.url = url;
+        }
+    }
+
+    /**
+     * Status, validators and freshness of a spooled response.
+     */
+    private static class Response {
+        final int status;
+        final String eTag;
+        final String lastModified;
+        final long maxAge;
+        /**
+         * Fresh body, written to the spool as it is read, or null if the spool holds the
+         * whole body already.
+         */
+        TeeInputStream body = null;
+        CountingInputStream wire = null;
+        HttpURLConnection connection = null;
+
+        Response(int status, HttpURLConnection conn) {
+            this.status = status;
+            this.eTag = conn.getHeaderField(HEADER_ETAG);
+            this.lastModified = conn.getHeaderField(HEADER_LAST_MODIFIED);
+            this.maxAge = HttpStreams.parseMaxAge(conn.getHeaderField(HEADER_CACHE_CONTROL));
+        }
+
+        void close() throws IOException {
+            try {
+                if (body != null) {
+                    body.close();
+                }
+            } finally {
+                if (connection != null) {
+                    connection.disconnect();
+                }
+            }
+        }
+    }
+
+    /**
+     * A feed that was received completely but could not be read.
+     */
+    private static class FeedFormatException extends IOException {
+        FeedFormatException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
     }
 }
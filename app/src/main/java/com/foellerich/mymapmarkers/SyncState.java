@@ -0,0 +1,157 @@
+package com.foellerich.mymapmarkers;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.Context;
+
+import com.foellerich.mymapmarkers.provider.MarkerContract;
+
+/**
+ * Per-account and per-source sync bookkeeping, stored in the user data of the sync account so
+ * it is discarded together with the account.
+ */
+public class SyncState {
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "last_modified";
+    private static final String KEY_CHANGE_TOKEN = "change_token";
+    private static final String KEY_SPOOL_URL = "spool_url";
+    private static final String KEY_SPOOL_VALIDATOR = "spool_validator";
+    private static final String KEY_SPOOL_ENCODING = "spool_encoding";
+    private static final String KEY_SPOOL_CONTENT_TYPE = "spool_content_type";
+    private static final String KEY_FAILURE_COUNT = "failure_count";
+    private static final String KEY_MAX_AGE = "max_age";
+    private static final String KEY_JSON_ONLY = "json_only";
+
+    private final AccountManager mAccountManager;
+    private final Account mAccount;
+    private final String mKeyPrefix;
+
+    /**
+     * State of the {@link MarkerContract.Marker#SOURCE_DEFAULT default} source.
+     */
+    public SyncState(Context context, Account account) {
+        this(context, account, MarkerContract.Marker.SOURCE_DEFAULT);
+    }
+
+    public SyncState(Context context, Account account, String source) {
+        mAccountManager = AccountManager.get(context);
+        mAccount = account;
+        // the default source keeps the keys from before there were sources
+        mKeyPrefix = MarkerContract.Marker.SOURCE_DEFAULT.equals(source)
+                ? "" : "source." + source + ".";
+    }
+
+    /**
+     * @return ETag of the last fully applied marker response, or null
+     */
+    public String getETag() {
+        return mAccountManager.getUserData(mAccount, mKeyPrefix + KEY_ETAG);
+    }
+
+    /**
+     * @return Last-Modified date of the last fully applied marker response, or null
+     */
+    public String getLastModified() {
+        return mAccountManager.getUserData(mAccount, mKeyPrefix + KEY_LAST_MODIFIED);
+    }
+
+    /**
+     * Remember the validators of a response once its content has been applied.
+     * @param eTag value of the ETag header, may be null
+     * @param lastModified value of the Last-Modified header, may be null
+     */
+    public void setValidators(String eTag, String lastModified) {
+        mAccountManager.setUserData(mAccount, mKeyPrefix + KEY_ETAG, eTag);
+        mAccountManager.setUserData(mAccount, mKeyPrefix + KEY_LAST_MODIFIED, lastModified);
+    }
+
+    /**
+     * @return token of the last applied feed to request a delta with, or null
+     */
+    public String getChangeToken() {
+        return mAccountManager.getUserData(mAccount, mKeyPrefix + KEY_CHANGE_TOKEN);
+    }
+
+    /**
+     * @param changeToken token to request the next delta with, null to force a full snapshot
+     */
+    public void setChangeToken(String changeToken) {
+        mAccountManager.setUserData(mAccount, mKeyPrefix + KEY_CHANGE_TOKEN, changeToken);
+    }
+
+    /**
+     * @return url of the partial download in the spool file, or null
+     */
+    public String getSpoolUrl() {
+        return mAccountManager.getUserData(mAccount, mKeyPrefix + KEY_SPOOL_URL);
+    }
+
+    /**
+     * @return ETag or Last-Modified date of the partial download, or null if it has none
+     */
+    public String getSpoolValidator() {
+        return mAccountManager.getUserData(mAccount, mKeyPrefix + KEY_SPOOL_VALIDATOR);
+    }
+
+    /**
+     * @return Content-Encoding of the partial download, or null
+     */
+    public String getSpoolEncoding() {
+        return mAccountManager.getUserData(mAccount, mKeyPrefix + KEY_SPOOL_ENCODING);
+    }
+
+    /**
+     * @return Content-Type of the partial download, or null
+     */
+    public String getSpoolContentType() {
+        return mAccountManager.getUserData(mAccount, mKeyPrefix + KEY_SPOOL_CONTENT_TYPE);
+    }
+
+    /**
+     * Describe the download being written to the spool file, all null once it is gone.
+     */
+    public void setSpool(String url, String validator, String contentEncoding,
+                         String contentType) {
+        mAccountManager.setUserData(mAccount, mKeyPrefix + KEY_SPOOL_URL, url);
+        mAccountManager.setUserData(mAccount, mKeyPrefix + KEY_SPOOL_VALIDATOR, validator);
+        mAccountManager.setUserData(mAccount, mKeyPrefix + KEY_SPOOL_ENCODING, contentEncoding);
+        mAccountManager.setUserData(mAccount, mKeyPrefix + KEY_SPOOL_CONTENT_TYPE, contentType);
+    }
+
+    /**
+     * @return number of failed syncs of the account in a row, shared by all sources
+     */
+    public int getFailureCount() {
+        String count = mAccountManager.getUserData(mAccount, KEY_FAILURE_COUNT);
+        return count != null ? Integer.parseInt(count) : 0;
+    }
+
+    public void setFailureCount(int count) {
+        mAccountManager.setUserData(mAccount, KEY_FAILURE_COUNT, Integer.toString(count));
+    }
+
+    /**
+     * @return seconds the last response was declared fresh for, or -1 if there was no hint
+     */
+    public long getMaxAge() {
+        String maxAge = mAccountManager.getUserData(mAccount, mKeyPrefix + KEY_MAX_AGE);
+        return maxAge != null ? Long.parseLong(maxAge) : -1;
+    }
+
+    public void setMaxAge(long maxAge) {
+        mAccountManager.setUserData(mAccount, mKeyPrefix + KEY_MAX_AGE, Long.toString(maxAge));
+    }
+
+    /**
+     * @return true if a binary feed of the source was too large to read, so only JSON is
+     *         asked for
+     */
+    public boolean isJsonOnly() {
+        return mAccountManager.getUserData(mAccount, mKeyPrefix + KEY_JSON_ONLY) != null;
+    }
+
+    public void setJsonOnly(boolean jsonOnly) {
+        mAccountManager.setUserData(mAccount, mKeyPrefix + KEY_JSON_ONLY,
+                jsonOnly ? Boolean.TRUE.toString() : null);
+    }
+}
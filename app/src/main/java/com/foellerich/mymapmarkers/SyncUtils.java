@@ -5,20 +5,33 @@ import android.accounts.AccountManager;
 import android.annotation.TargetApi;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Build;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
+import android.text.TextUtils;
+import android.util.Log;
 
 import com.example.android.common.accounts.GenericAccountService;
 import com.foellerich.mymapmarkers.provider.MarkerContract;
+import com.foellerich.mymapmarkers.sync.SyncScheduler;
+
+import java.util.Collection;
 
 /**
  * Created by foellerich on 25.04.2015.
  */
 public class SyncUtils {
-    private static final long SYNC_FREQUENCY = 60 * 60; // 1 hour in seconds
+    private static final String TAG = "MarkerSyncUtils";
+    private static final long SYNC_FREQUENCY = 60 * 60; // 1 hour in seconds, until adapted
     private static final String CONTENT_AUTHORITY = MarkerContract.CONTENT_AUTHORITY;
     private static final String PREF_SETUP_COMPLETE = "setup_complete";
+    private static final String PREF_TILE_SYNC = "tile_sync";
+    private static final String PREF_SYNC_FREQUENCY = "sync_frequency";
+    private static final String PREF_CHANGE_RATE = "change_rate";
+    private static final String PREF_LAST_SYNC = "last_sync";
+    private static final String PREF_BOOTSTRAPPED = "bootstrapped";
+    private static final String PREF_BOOTSTRAP_TOKEN = "bootstrap_token";
     public static final String ACCOUNT_TYPE = "com.foellerich.mymapmarkers.account";
 
     /**
@@ -61,4 +74,99 @@ public class SyncUtils {
                 b                                               // extra options
         );
     }
+
+    /**
+     * @return whether markers are synced tile by tile as they are viewed instead of all at once
+     */
+    public static boolean isTileSyncEnabled(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(PREF_TILE_SYNC, false);
+    }
+
+    /**
+     * Switch between syncing all markers and syncing the tiles viewed. The validators and the
+     * change tokens of the full sync are dropped, as the tile sync does not keep the table in
+     * the state they describe.
+     */
+    public static void setTileSyncEnabled(Context context, boolean enabled) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putBoolean(PREF_TILE_SYNC, enabled).commit();
+        Account account = GenericAccountService.GetAccount(ACCOUNT_TYPE);
+        for (String source : context.getResources().getStringArray(R.array.sync_source_names)) {
+            SyncState state = new SyncState(context, account, source);
+            state.setValidators(null, null);
+            state.setChangeToken(null);
+        }
+    }
+
+    /**
+     * Fetch the markers of the given tiles.
+     * @param quadKeys tiles to fetch
+     * @param expedited whether the tiles are on screen, otherwise they are only prefetched
+     */
+    public static void requestTileSync(Collection<String> quadKeys, boolean expedited) {
+        Bundle b = new Bundle();
+        b.putString(SyncAdapter.EXTRA_TILES, TextUtils.join(",", quadKeys));
+        if (expedited) {
+            b.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+        }
+        ContentResolver.requestSync(
+                GenericAccountService.GetAccount(ACCOUNT_TYPE), CONTENT_AUTHORITY, b);
+    }
+
+    /**
+     * Fold the rows a full sync changed into the change rate of the markers and re-register
+     * the periodic sync at the interval {@link SyncScheduler} picks for it.
+     * @param changes rows inserted, updated or deleted by the sync
+     * @param maxAge seconds the server declared the markers fresh for, or -1
+     */
+    public static void updateSyncFrequency(Context context, long changes, long maxAge) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        long now = System.currentTimeMillis();
+        long lastSync = prefs.getLong(PREF_LAST_SYNC, 0);
+        long frequency = prefs.getLong(PREF_SYNC_FREQUENCY, SYNC_FREQUENCY);
+        double rate = prefs.getFloat(PREF_CHANGE_RATE, -1f);
+        // the first sync downloads everything, which says nothing about the change rate
+        if (lastSync > 0) {
+            rate = SyncScheduler.updateRate(rate, changes, (now - lastSync) / 1000);
+        }
+        long next = SyncScheduler.getInterval(rate, frequency, maxAge);
+        SharedPreferences.Editor editor = prefs.edit()
+                .putLong(PREF_LAST_SYNC, now)
+                .putFloat(PREF_CHANGE_RATE, (float) rate);
+        if (SyncScheduler.shouldReschedule(frequency, next)) {
+            Log.i(TAG, "Syncing every " + next + " s instead of every " + frequency + " s");
+            ContentResolver.addPeriodicSync(GenericAccountService.GetAccount(ACCOUNT_TYPE),
+                    CONTENT_AUTHORITY, new Bundle(), next);
+            editor.putLong(PREF_SYNC_FREQUENCY, next);
+        }
+        editor.commit();
+    }
+
+    /**
+     * Note that the marker table was just filled from the bundled snapshot, so the next sync
+     * continues from its token instead of the state of the table before.
+     * @param token change token of the snapshot, or null to sync a full snapshot next
+     */
+    public static void setBootstrapToken(Context context, String token) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putBoolean(PREF_BOOTSTRAPPED, true)
+                .putString(PREF_BOOTSTRAP_TOKEN, token)
+                .commit();
+    }
+
+    /**
+     * Hand the sync the state of the bundled snapshot once.
+     * @return whether the table was filled from the snapshot since the last call
+     */
+    static boolean takeBootstrap(Context context, SyncState state) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (!prefs.getBoolean(PREF_BOOTSTRAPPED, false)) {
+            return false;
+        }
+        state.setValidators(null, null);
+        state.setChangeToken(prefs.getString(PREF_BOOTSTRAP_TOKEN, null));
+        prefs.edit().remove(PREF_BOOTSTRAPPED).remove(PREF_BOOTSTRAP_TOKEN).commit();
+        return true;
+    }
 }
@@ -0,0 +1,326 @@
+package com.foellerich.mymapmarkers.net;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * {@link MarkerParser.FeedReader} over the compact binary feed,
+ * {@value MarkerParser#CONTENT_TYPE_BINARY}.
+ *
+ * <p>The feed carries the same sections as the JSON one, each prefixed with its item count:
+ * <pre>
+ * feed     = "MMF1" section* 0x00
+ * section  = 0x01 count entry*       markers
+ *          | 0x02 count entry*       changed
+ *          | 0x03 count id*          deleted
+ *          | 0x04 string             next_token
+ * entry    = id name:string address lat lng
+ * id       = shared:varint suffix:string
+ * string   = (length + 1):varint utf8-bytes, 0 for null
+ * address  = (parts + 1):varint part*, 0 for null
+ * part     = 0 string | (index + 1):varint
+ * lat, lng = zigzag varint of the degrees times 10^7
+ * </pre>
+ * Ids are front coded: {@code shared} is the number of leading characters taken over from
+ * the previous id of the feed, which is most of an id in a feed ordered by id. Addresses are
+ * split at {@code ", "} and every part is either a reference to a part sent before or a new
+ * one, which is appended to the string table of the feed. The table lives as long as the
+ * reader, so a feed whose table outgrows {@value #MAX_STRING_TABLE_BYTES} bytes is rejected
+ * with a {@link MarkerParser.FeedTooLargeException}; the sync adapter then asks for the feeds
+ * of that source as JSON.
+ *
+ * <p>Coordinates are fixed point with a resolution of about a centimeter, and a division by
+ * 10^7 rounds them to the same double as parsing their decimal form. A coordinate with more
+ * decimals arrives rounded, {@link com.foellerich.mymapmarkers.sync.MarkerMerger} compares
+ * coordinates at this resolution so that a change of the format does not rewrite every row.
+ */
+class BinaryFeedReader implements MarkerParser.FeedReader {
+
+    private static final String TAG = "BinaryFeedReader";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final byte[] MAGIC = {'M', 'M', 'F', '1'};
+
+    private static final int TAG_END = 0;
+    private static final int TAG_MARKERS = 1;
+    private static final int TAG_CHANGED = 2;
+    private static final int TAG_DELETED = 3;
+    private static final int TAG_NEXT_TOKEN = 4;
+
+    private static final double FIXED_POINT_SCALE = 1e7;
+
+    private static final String ADDRESS_SEPARATOR = ", ";
+
+    /**
+     * Memory the string table may take, estimated as two bytes a character plus
+     * {@value #STRING_OVERHEAD_BYTES} for every string.
+     */
+    static final long MAX_STRING_TABLE_BYTES = 16 * 1024 * 1024;
+    private static final int STRING_OVERHEAD_BYTES = 40;
+
+    private final InputStream mIn;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mPos = 0;
+    private int mLimit = 0;
+    private long mOffset = 0;
+
+    private byte[] mScratch = new byte[128];
+
+    private final ArrayList<String> mStrings = new ArrayList<String>();
+    private final long mMaxStringTableBytes;
+    private long mStringTableBytes = 0;
+    private final StringBuilder mAddress = new StringBuilder();
+    private String mPreviousId = "";
+
+    private boolean mStarted = false;
+    private boolean mDone = false;
+    private int mSection = SECTION_END;
+    private int mRemaining = 0;
+    private int mCount = 0;
+    private String mNextToken = null;
+
+    BinaryFeedReader(InputStream in) {
+        this(in, MAX_STRING_TABLE_BYTES);
+    }
+
+    /**
+     * @param maxStringTableBytes memory the string table may take before the feed is rejected
+     */
+    BinaryFeedReader(InputStream in, long maxStringTableBytes) {
+        mIn = in;
+        mMaxStringTableBytes = maxStringTableBytes;
+    }
+
+    @Override
+    public int nextSection() throws IOException {
+        if (mDone) {
+            return SECTION_END;
+        }
+        if (!mStarted) {
+            for (byte b : MAGIC) {
+                if (readByte() != b) {
+                    throw syntaxError("Not a binary marker feed");
+                }
+            }
+            mStarted = true;
+        }
+        // drop what is left of the current section
+        while (mRemaining > 0) {
+            if (mSection == SECTION_DELETED) {
+                nextDeletedId();
+            } else {
+                nextEntry();
+            }
+        }
+        while (true) {
+            int tag = readByte();
+            switch (tag) {
+                case TAG_END:
+                    mDone = true;
+                    mSection = SECTION_END;
+                    return SECTION_END;
+                case TAG_MARKERS:
+                    return startSection(SECTION_MARKERS);
+                case TAG_CHANGED:
+                    return startSection(SECTION_CHANGED);
+                case TAG_DELETED:
+                    return startSection(SECTION_DELETED);
+                case TAG_NEXT_TOKEN:
+                    mNextToken = readString();
+                    break;
+                default:
+                    throw syntaxError("Unknown section " + tag);
+            }
+        }
+    }
+
+    private int startSection(int section) throws IOException {
+        mSection = section;
+        mRemaining = readLength();
+        mCount = 0;
+        if (mRemaining == 0) {
+            endSection();
+        }
+        return section;
+    }
+
+    private void endSection() {
+        Log.i(TAG, "Read " + mCount + " items");
+    }
+
+    @Override
+    public MarkerParser.Entry nextEntry() throws IOException {
+        if (mRemaining == 0 || mSection == SECTION_DELETED) {
+            return null;
+        }
+        String id = readId();
+        String name = readString();
+        String address = readAddress();
+        double lat = readFixedPoint();
+        double lng = readFixedPoint();
+        itemRead();
+        return new MarkerParser.Entry(id, name, address, lat, lng);
+    }
+
+    @Override
+    public String nextDeletedId() throws IOException {
+        if (mRemaining == 0 || mSection != SECTION_DELETED) {
+            return null;
+        }
+        String id = readId();
+        itemRead();
+        return id;
+    }
+
+    private void itemRead() {
+        mCount++;
+        if (--mRemaining == 0) {
+            endSection();
+        }
+    }
+
+    @Override
+    public String getNextToken() {
+        return mNextToken;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private String readId() throws IOException {
+        int shared = readLength();
+        String suffix = readString();
+        if (suffix == null || shared > mPreviousId.length()) {
+            throw syntaxError("Invalid id");
+        }
+        String id = shared == 0 ? suffix : mPreviousId.substring(0, shared).concat(suffix);
+        mPreviousId = id;
+        return id;
+    }
+
+    private String readAddress() throws IOException {
+        int parts = readLength();
+        if (parts == 0) {
+            return null;
+        }
+        parts--;
+        if (parts == 1) {
+            return readPart();
+        }
+        mAddress.setLength(0);
+        for (int i = 0; i < parts; i++) {
+            if (i > 0) {
+                mAddress.append(ADDRESS_SEPARATOR);
+            }
+            mAddress.append(readPart());
+        }
+        return mAddress.toString();
+    }
+
+    private String readPart() throws IOException {
+        int ref = readLength();
+        if (ref == 0) {
+            String part = readString();
+            if (part == null) {
+                throw syntaxError("Invalid address part");
+            }
+            mStringTableBytes += 2L * part.length() + STRING_OVERHEAD_BYTES;
+            if (mStringTableBytes > mMaxStringTableBytes) {
+                throw new MarkerParser.FeedTooLargeException("String table larger than "
+                        + mMaxStringTableBytes + " bytes at byte " + (mOffset + mPos));
+            }
+            mStrings.add(part);
+            return part;
+        }
+        if (ref > mStrings.size()) {
+            throw syntaxError("Unknown string " + (ref - 1));
+        }
+        return mStrings.get(ref - 1);
+    }
+
+    private double readFixedPoint() throws IOException {
+        long zigzag = readVarint();
+        return ((zigzag >>> 1) ^ -(zigzag & 1)) / FIXED_POINT_SCALE;
+    }
+
+    private String readString() throws IOException {
+        int length = readLength();
+        if (length == 0) {
+            return null;
+        }
+        length--;
+        if (mLimit - mPos >= length) {
+            String s = new String(mBuffer, mPos, length, UTF_8);
+            mPos += length;
+            return s;
+        }
+        if (mScratch.length < length) {
+            mScratch = new byte[Math.max(length, mScratch.length * 2)];
+        }
+        for (int copied = 0; copied < length; ) {
+            if (mPos == mLimit && !fill()) {
+                throw syntaxError("Unexpected end of feed");
+            }
+            int n = Math.min(length - copied, mLimit - mPos);
+            System.arraycopy(mBuffer, mPos, mScratch, copied, n);
+            mPos += n;
+            copied += n;
+        }
+        return new String(mScratch, 0, length, UTF_8);
+    }
+
+    /**
+     * Read a varint that is a count or a length.
+     */
+    private int readLength() throws IOException {
+        long value = readVarint();
+        if (value > Integer.MAX_VALUE) {
+            throw syntaxError("Length out of range");
+        }
+        return (int) value;
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw syntaxError("Varint too long");
+    }
+
+    private int readByte() throws IOException {
+        if (mPos == mLimit && !fill()) {
+            throw syntaxError("Unexpected end of feed");
+        }
+        return mBuffer[mPos++] & 0xff;
+    }
+
+    private boolean fill() throws IOException {
+        mOffset += mLimit;
+        mPos = 0;
+        mLimit = 0;
+        int n = mIn.read(mBuffer, 0, BUFFER_SIZE);
+        if (n <= 0) {
+            return false;
+        }
+        mLimit = n;
+        return true;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(message + " at byte " + (mOffset + mPos));
+    }
+}
@@ -0,0 +1,578 @@
+package com.foellerich.mymapmarkers.net;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * {@link MarkerParser.FeedReader} that tokenizes the UTF-8 bytes of the feed directly.
+ *
+ * <p>Keys and string values are collected in one reusable scratch buffer. Keys are compared
+ * against the known field names byte by byte, so only the values that end up in an
+ * {@link MarkerParser.Entry} become Strings. Numbers with at most 15 significant digits and a
+ * decimal exponent within &plusmn;22 are converted with a single exact multiplication or
+ * division, which rounds the same way as {@link Double#parseDouble(String)}; everything else
+ * falls back to it.
+ */
+class ByteFeedReader implements MarkerParser.FeedReader {
+
+    private static final String TAG = "ByteFeedReader";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final byte[] KEY_MARKERS = ascii("markers");
+    private static final byte[] KEY_CHANGED = ascii("changed");
+    private static final byte[] KEY_DELETED = ascii("deleted");
+    private static final byte[] KEY_NEXT_TOKEN = ascii("next_token");
+    private static final byte[] KEY_ID = ascii("_id");
+    private static final byte[] KEY_NAME = ascii("name");
+    private static final byte[] KEY_ADDRESS = ascii("address");
+    private static final byte[] KEY_LAT = ascii("lat");
+    private static final byte[] KEY_LNG = ascii("lng");
+
+    private static final int MAX_FAST_DIGITS = 15;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final InputStream mIn;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mPos = 0;
+    private int mLimit = 0;
+    private long mOffset = 0;
+
+    private byte[] mScratch = new byte[128];
+    private int mScratchLength = 0;
+
+    private boolean mStarted = false;
+    private boolean mFirstMember = true;
+    private boolean mInArray = false;
+    private boolean mFirstElement = false;
+    private boolean mDone = false;
+    private String mNextToken = null;
+    private int mCount = 0;
+
+    ByteFeedReader(InputStream in) {
+        mIn = in;
+    }
+
+    @Override
+    public int nextSection() throws IOException {
+        if (mDone) {
+            return SECTION_END;
+        }
+        if (mInArray) {
+            while (hasNextElement()) {
+                skipValue();
+            }
+        }
+        if (!mStarted) {
+            expect('{');
+            mStarted = true;
+        }
+        while (hasNextMember(mFirstMember)) {
+            mFirstMember = false;
+            int section = SECTION_END;
+            if (keyEquals(KEY_MARKERS)) {
+                section = SECTION_MARKERS;
+            } else if (keyEquals(KEY_CHANGED)) {
+                section = SECTION_CHANGED;
+            } else if (keyEquals(KEY_DELETED)) {
+                section = SECTION_DELETED;
+            } else if (keyEquals(KEY_NEXT_TOKEN)) {
+                mNextToken = readString();
+                continue;
+            }
+            if (section != SECTION_END) {
+                expect('[');
+                mInArray = true;
+                mFirstElement = true;
+                mCount = 0;
+                return section;
+            }
+            skipValue();
+        }
+        mDone = true;
+        return SECTION_END;
+    }
+
+    @Override
+    public MarkerParser.Entry nextEntry() throws IOException {
+        if (!mInArray || !hasNextElement()) {
+            return null;
+        }
+        mCount++;
+        return readMarker();
+    }
+
+    @Override
+    public String nextDeletedId() throws IOException {
+        if (!mInArray || !hasNextElement()) {
+            return null;
+        }
+        mCount++;
+        return readString();
+    }
+
+    @Override
+    public String getNextToken() {
+        return mNextToken;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private MarkerParser.Entry readMarker() throws IOException {
+        String id = null;
+        String name = null;
+        String address = null;
+        double lat = 0;
+        double lng = 0;
+
+        expect('{');
+        boolean first = true;
+        while (hasNextMember(first)) {
+            first = false;
+            if (keyEquals(KEY_ID)) {
+                id = readString();
+            } else if (keyEquals(KEY_NAME)) {
+                name = readString();
+            } else if (keyEquals(KEY_ADDRESS)) {
+                address = readString();
+            } else if (keyEquals(KEY_LAT)) {
+                lat = readDouble();
+            } else if (keyEquals(KEY_LNG)) {
+                lng = readDouble();
+            } else {
+                skipValue();
+            }
+        }
+        return new MarkerParser.Entry(id, name, address, lat, lng);
+    }
+
+    /**
+     * Advance to the next element of the current array, ending the section after the last.
+     */
+    private boolean hasNextElement() throws IOException {
+        int c = peekNonWhitespace();
+        if (c == ']') {
+            mPos++;
+            mInArray = false;
+            Log.i(TAG, "Read " + mCount + " items");
+            return false;
+        }
+        if (!mFirstElement) {
+            if (c != ',') {
+                throw syntaxError("Expected ',' or ']'");
+            }
+            mPos++;
+        }
+        mFirstElement = false;
+        return true;
+    }
+
+    /**
+     * Advance to the next member of the current object, leaving its key in the scratch buffer
+     * and the reader in front of its value.
+     * @return false after the closing brace
+     */
+    private boolean hasNextMember(boolean first) throws IOException {
+        int c = peekNonWhitespace();
+        if (c == '}') {
+            mPos++;
+            return false;
+        }
+        if (!first) {
+            if (c != ',') {
+                throw syntaxError("Expected ',' or '}'");
+            }
+            mPos++;
+        }
+        expect('"');
+        readStringBytes();
+        expect(':');
+        return true;
+    }
+
+    private boolean keyEquals(byte[] key) {
+        if (mScratchLength != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (mScratch[i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read a string, a bare number as its literal text, or null.
+     */
+    private String readString() throws IOException {
+        int c = peekNonWhitespace();
+        if (c == '"') {
+            mPos++;
+            readStringBytes();
+        } else if (c == 'n') {
+            readLiteral();
+            return null;
+        } else if (c == '-' || (c >= '0' && c <= '9')) {
+            readLiteral();
+        } else {
+            throw syntaxError("Expected a string");
+        }
+        return new String(mScratch, 0, mScratchLength, UTF_8);
+    }
+
+    /**
+     * Read a number, or a string holding one.
+     */
+    private double readDouble() throws IOException {
+        int c = peekNonWhitespace();
+        if (c == '"') {
+            mPos++;
+            readStringBytes();
+        } else if (c == '-' || (c >= '0' && c <= '9')) {
+            readLiteral();
+        } else {
+            throw syntaxError("Expected a number");
+        }
+        return parseScratchDouble();
+    }
+
+    private double parseScratchDouble() throws IOException {
+        int i = 0;
+        boolean negative = false;
+        if (i < mScratchLength && mScratch[i] == '-') {
+            negative = true;
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean fast = i < mScratchLength;
+        boolean seenDigit = false;
+        boolean seenPoint = false;
+        for (; i < mScratchLength; i++) {
+            int b = mScratch[i];
+            if (b >= '0' && b <= '9') {
+                seenDigit = true;
+                if (mantissa != 0 || b != '0') {
+                    mantissa = mantissa * 10 + (b - '0');
+                    digits++;
+                }
+                if (seenPoint) {
+                    exponent--;
+                }
+                if (digits > MAX_FAST_DIGITS) {
+                    fast = false;
+                    break;
+                }
+            } else if (b == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                break;
+            }
+        }
+        if (fast && i < mScratchLength) {
+            fast = seenDigit && (mScratch[i] == 'e' || mScratch[i] == 'E');
+            i++;
+            boolean negativeExponent = false;
+            if (fast && i < mScratchLength && (mScratch[i] == '-' || mScratch[i] == '+')) {
+                negativeExponent = mScratch[i] == '-';
+                i++;
+            }
+            int explicit = 0;
+            boolean exponentDigit = false;
+            for (; fast && i < mScratchLength; i++) {
+                int b = mScratch[i];
+                if (b < '0' || b > '9' || explicit > 1000) {
+                    fast = false;
+                    break;
+                }
+                explicit = explicit * 10 + (b - '0');
+                exponentDigit = true;
+            }
+            fast = fast && exponentDigit;
+            exponent += negativeExponent ? -explicit : explicit;
+        }
+        if (fast && seenDigit) {
+            if (mantissa == 0) {
+                return negative ? -0.0 : 0.0;
+            }
+            if (exponent >= -22 && exponent <= 22) {
+                double value = exponent < 0
+                        ? mantissa / POWERS_OF_TEN[-exponent]
+                        : mantissa * POWERS_OF_TEN[exponent];
+                return negative ? -value : value;
+            }
+        }
+        String literal = new String(mScratch, 0, mScratchLength, UTF_8);
+        try {
+            return Double.parseDouble(literal);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Invalid number " + literal);
+        }
+    }
+
+    /**
+     * Collect the rest of a string whose opening quote was consumed, unescaped and still
+     * UTF-8 encoded, into the scratch buffer.
+     */
+    private void readStringBytes() throws IOException {
+        mScratchLength = 0;
+        while (true) {
+            if (mPos == mLimit && !fill()) {
+                throw syntaxError("Unterminated string");
+            }
+            int start = mPos;
+            while (mPos < mLimit) {
+                byte b = mBuffer[mPos];
+                if (b == '"' || b == '\\') {
+                    break;
+                }
+                mPos++;
+            }
+            append(mBuffer, start, mPos - start);
+            if (mPos == mLimit) {
+                continue;
+            }
+            if (mBuffer[mPos++] == '"') {
+                return;
+            }
+            readEscape(read());
+        }
+    }
+
+    private void readEscape(int c) throws IOException {
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                append((byte) c);
+                break;
+            case 'b':
+                append((byte) '\b');
+                break;
+            case 'f':
+                append((byte) '\f');
+                break;
+            case 'n':
+                append((byte) '\n');
+                break;
+            case 'r':
+                append((byte) '\r');
+                break;
+            case 't':
+                append((byte) '\t');
+                break;
+            case 'u':
+                int unit = readHex();
+                if (Character.isHighSurrogate((char) unit) && peek() == '\\') {
+                    mPos++;
+                    int next = read();
+                    if (next == 'u') {
+                        int low = readHex();
+                        if (Character.isLowSurrogate((char) low)) {
+                            appendCodePoint(Character.toCodePoint((char) unit, (char) low));
+                        } else {
+                            appendCodePoint(unit);
+                            appendCodePoint(low);
+                        }
+                    } else {
+                        appendCodePoint(unit);
+                        readEscape(next);
+                    }
+                } else {
+                    appendCodePoint(unit);
+                }
+                break;
+            default:
+                throw syntaxError("Invalid escape sequence");
+        }
+    }
+
+    private int readHex() throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int c = read();
+            int digit = Character.digit(c, 16);
+            if (c == -1 || digit == -1) {
+                throw syntaxError("Invalid \\u escape");
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private void appendCodePoint(int codePoint) {
+        if (codePoint < 0x80) {
+            append((byte) codePoint);
+        } else if (codePoint < 0x800) {
+            append((byte) (0xc0 | (codePoint >> 6)));
+            append((byte) (0x80 | (codePoint & 0x3f)));
+        } else if (codePoint < 0x10000) {
+            append((byte) (0xe0 | (codePoint >> 12)));
+            append((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+            append((byte) (0x80 | (codePoint & 0x3f)));
+        } else {
+            append((byte) (0xf0 | (codePoint >> 18)));
+            append((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+            append((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+            append((byte) (0x80 | (codePoint & 0x3f)));
+        }
+    }
+
+    /**
+     * Collect a number or literal into the scratch buffer.
+     */
+    private void readLiteral() throws IOException {
+        mScratchLength = 0;
+        while (mPos < mLimit || fill()) {
+            byte b = mBuffer[mPos];
+            if (b == ',' || b == '}' || b == ']' || b == ':' || isWhitespace(b)) {
+                return;
+            }
+            append(b);
+            mPos++;
+        }
+    }
+
+    private void skipValue() throws IOException {
+        int c = peekNonWhitespace();
+        if (c == '"') {
+            mPos++;
+            skipString();
+        } else if (c == '{') {
+            mPos++;
+            boolean first = true;
+            while (hasNextMember(first)) {
+                first = false;
+                skipValue();
+            }
+        } else if (c == '[') {
+            mPos++;
+            boolean first = true;
+            while (true) {
+                c = peekNonWhitespace();
+                if (c == ']') {
+                    mPos++;
+                    break;
+                }
+                if (!first) {
+                    if (c != ',') {
+                        throw syntaxError("Expected ',' or ']'");
+                    }
+                    mPos++;
+                }
+                first = false;
+                skipValue();
+            }
+        } else if (c == -1) {
+            throw syntaxError("Unexpected end of input");
+        } else {
+            readLiteral();
+            if (mScratchLength == 0) {
+                throw syntaxError("Unexpected character");
+            }
+        }
+    }
+
+    private void skipString() throws IOException {
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                throw syntaxError("Unterminated string");
+            } else if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                read();
+            }
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        if (peekNonWhitespace() != expected) {
+            throw syntaxError("Expected '" + expected + "'");
+        }
+        mPos++;
+    }
+
+    private int peekNonWhitespace() throws IOException {
+        while (mPos < mLimit || fill()) {
+            byte b = mBuffer[mPos];
+            if (!isWhitespace(b)) {
+                return b & 0xff;
+            }
+            mPos++;
+        }
+        return -1;
+    }
+
+    private int peek() throws IOException {
+        if (mPos == mLimit && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPos] & 0xff;
+    }
+
+    private int read() throws IOException {
+        if (mPos == mLimit && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPos++] & 0xff;
+    }
+
+    private boolean fill() throws IOException {
+        mOffset += mLimit;
+        mPos = 0;
+        mLimit = 0;
+        int n = mIn.read(mBuffer, 0, mBuffer.length);
+        if (n <= 0) {
+            return false;
+        }
+        mLimit = n;
+        return true;
+    }
+
+    private void append(byte b) {
+        if (mScratchLength == mScratch.length) {
+            grow(mScratchLength + 1);
+        }
+        mScratch[mScratchLength++] = b;
+    }
+
+    private void append(byte[] bytes, int offset, int length) {
+        if (mScratchLength + length > mScratch.length) {
+            grow(mScratchLength + length);
+        }
+        System.arraycopy(bytes, offset, mScratch, mScratchLength, length);
+        mScratchLength += length;
+    }
+
+    private void grow(int minLength) {
+        byte[] grown = new byte[Math.max(minLength, mScratch.length * 2)];
+        System.arraycopy(mScratch, 0, grown, 0, mScratchLength);
+        mScratch = grown;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(message + " at byte " + (mOffset + mPos));
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(Charset.forName("US-ASCII"));
+    }
+}
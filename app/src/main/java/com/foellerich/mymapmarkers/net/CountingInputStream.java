@@ -0,0 +1,61 @@
+package com.foellerich.mymapmarkers.net;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream counting the bytes read through it.
+ */
+public class CountingInputStream extends FilterInputStream {
+    private long mCount = 0;
+    private long mMark = 0;
+
+    public CountingInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * @return number of bytes read or skipped so far
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            mCount++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int n = super.read(buffer, offset, length);
+        if (n > 0) {
+            mCount += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        mCount += skipped;
+        return skipped;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        super.mark(readLimit);
+        mMark = mCount;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        super.reset();
+        mCount = mMark;
+    }
+}
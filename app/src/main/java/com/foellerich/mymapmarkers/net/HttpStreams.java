@@ -0,0 +1,82 @@
+package com.foellerich.mymapmarkers.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Content negotiation helpers for the marker download.
+ *
+ * <p>Setting {@code Accept-Encoding} by hand turns off the transparent gzip handling of
+ * {@link java.net.HttpURLConnection}, which is what lets us count the bytes on the wire. In
+ * turn the response has to be decoded here.
+ */
+public final class HttpStreams {
+    public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static final String ENCODING_GZIP = "gzip";
+    private static final String ENCODING_DEFLATE = "deflate";
+    private static final String ENCODING_IDENTITY = "identity";
+
+    private static final String CACHE_CONTROL_MAX_AGE = "max-age=";
+    private static final String CACHE_CONTROL_NO_CACHE = "no-cache";
+    private static final String CACHE_CONTROL_NO_STORE = "no-store";
+
+    private HttpStreams() {}
+
+    /**
+     * Wrap a response body in the decoder matching its {@code Content-Encoding}.
+     * @param in raw response body
+     * @param contentEncoding value of the Content-Encoding header, may be null
+     * @return decoded response body
+     * @throws IOException if the encoding is not supported
+     */
+    public static InputStream decode(InputStream in, String contentEncoding) throws IOException {
+        if (contentEncoding == null) {
+            return in;
+        }
+        String encoding = contentEncoding.trim();
+        if (encoding.equalsIgnoreCase(ENCODING_GZIP)) {
+            return new GZIPInputStream(in);
+        } else if (encoding.equalsIgnoreCase(ENCODING_DEFLATE)) {
+            return new InflaterInputStream(in);
+        } else if (encoding.length() == 0 || encoding.equalsIgnoreCase(ENCODING_IDENTITY)) {
+            return in;
+        }
+        throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+    }
+
+    /**
+     * Read the freshness lifetime from a {@code Cache-Control} header.
+     * @param cacheControl value of the Cache-Control header, may be null
+     * @return seconds the response is fresh for, 0 if it has to be revalidated every time, or
+     *         -1 if the header says nothing about it or only a malformed or negative max-age
+     */
+    public static long parseMaxAge(String cacheControl) {
+        if (cacheControl == null) {
+            return -1;
+        }
+        long maxAge = -1;
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim().toLowerCase(Locale.US);
+            if (directive.equals(CACHE_CONTROL_NO_CACHE)
+                    || directive.equals(CACHE_CONTROL_NO_STORE)) {
+                return 0;
+            } else if (directive.startsWith(CACHE_CONTROL_MAX_AGE)) {
+                try {
+                    long value = Long.parseLong(directive.substring(
+                            CACHE_CONTROL_MAX_AGE.length()).replace("\"", "").trim());
+                    if (value >= 0) {
+                        maxAge = value;
+                    }
+                } catch (NumberFormatException e) {
+                    // a malformed directive is ignored like an unknown one
+                }
+            }
+        }
+        return maxAge;
+    }
+}
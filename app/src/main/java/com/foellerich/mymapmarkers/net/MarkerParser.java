@@ -1,8 +1,10 @@
 package com.foellerich.mymapmarkers.net;
 
 import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -16,15 +18,45 @@ public class MarkerParser {
 
     private final static String TAG = "MarkerParser";
 
+    public static final String CONTENT_TYPE_JSON = "application/json";
+    public static final String CONTENT_TYPE_BINARY = "application/vnd.mymapmarkers.feed";
+
+    /**
+     * Accept header offering the feed formats we read, the binary one preferred.
+     */
+    public static final String ACCEPT = CONTENT_TYPE_BINARY + ", " + CONTENT_TYPE_JSON + ";q=0.5";
+
+    /**
+     * Accept header for a source whose binary feed is too large to read, see
+     * {@link FeedTooLargeException}.
+     */
+    public static final String ACCEPT_JSON = CONTENT_TYPE_JSON;
+
+    private final boolean mByteLevel;
+
+    public MarkerParser() {
+        this(false);
+    }
+
+    /**
+     * @param byteLevel read the feed with {@link ByteFeedReader}, which tokenizes the UTF-8
+     *                  bytes itself instead of going through {@link JsonReader}
+     */
+    public MarkerParser(boolean byteLevel) {
+        mByteLevel = byteLevel;
+    }
+
     public List<Entry> parse(InputStream in) throws IOException {
-        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        FeedReader reader = open(in);
         List<Entry> messages = new ArrayList<Entry>();
         try {
-            reader.beginObject();
-            while(reader.hasNext()) {
-                String name = reader.nextName();
-                if (name.equals("markers")) {
-                    messages = readMessagesArray(reader);
+            int section;
+            while ((section = reader.nextSection()) != FeedReader.SECTION_END) {
+                if (section == FeedReader.SECTION_MARKERS) {
+                    Entry entry;
+                    while ((entry = reader.nextEntry()) != null) {
+                        messages.add(entry);
+                    }
                 }
             }
             return messages;
@@ -33,6 +65,39 @@ public class MarkerParser {
         }
     }
 
+    /**
+     * Open a streaming reader over the feed.
+     *
+     * <p>Entries are handed out one at a time, so the caller never has to hold the whole
+     * feed in memory.
+     * @param in stream of the JSON document
+     * @return reader positioned before the first section
+     */
+    public FeedReader open(InputStream in) throws IOException {
+        if (mByteLevel) {
+            return new ByteFeedReader(in);
+        }
+        return new JsonFeedReader(new JsonReader(new InputStreamReader(in, "UTF-8")));
+    }
+
+    /**
+     * Open a streaming reader over a feed in the format the server picked.
+     * @param contentType value of the Content-Type header, JSON is assumed if it is null
+     * @return reader positioned before the first section
+     * @see #ACCEPT
+     */
+    public FeedReader open(InputStream in, String contentType) throws IOException {
+        if (contentType != null) {
+            int parameters = contentType.indexOf(';');
+            String mediaType = (parameters < 0 ? contentType
+                    : contentType.substring(0, parameters)).trim();
+            if (mediaType.equalsIgnoreCase(CONTENT_TYPE_BINARY)) {
+                return new BinaryFeedReader(in);
+            }
+        }
+        return open(in);
+    }
+
     public List<Entry> readMessagesArray(JsonReader reader) throws IOException {
         List<Entry> markers = new ArrayList<Entry>();
         reader.beginArray();
@@ -67,11 +132,159 @@ public class MarkerParser {
                 reader.skipValue();
             }
         }
-        Log.i(TAG, "id: " + id);
         reader.endObject();
         return new Entry(id, name, address, lat, lng);
     }
 
+    /**
+     * Pull reader over the sections of a feed.
+     *
+     * <p>A full snapshot carries all markers in a {@code markers} array. A delta carries the
+     * markers changed since the requested token in {@code changed} and the ids of removed
+     * markers in {@code deleted}. Both may carry a {@code next_token} to request the
+     * following delta with.
+     */
+    public interface FeedReader extends Closeable {
+        int SECTION_END = 0;
+        int SECTION_MARKERS = 1;
+        int SECTION_CHANGED = 2;
+        int SECTION_DELETED = 3;
+
+        /**
+         * Advance to the next known section, skipping the rest of the current one.
+         * @return one of the {@code SECTION_} constants
+         */
+        int nextSection() throws IOException;
+
+        /**
+         * @return the next marker of a {@code markers} or {@code changed} section, or null
+         *         at the end of the section
+         */
+        Entry nextEntry() throws IOException;
+
+        /**
+         * @return the next id of a {@code deleted} section, or null at the end of the section
+         */
+        String nextDeletedId() throws IOException;
+
+        /**
+         * @return token to request the next delta with, only complete once
+         *         {@link #nextSection()} returned {@link #SECTION_END}
+         */
+        String getNextToken();
+    }
+
+    private class JsonFeedReader implements FeedReader {
+        private final JsonReader mReader;
+        private boolean mStarted = false;
+        private boolean mInArray = false;
+        private boolean mDone = false;
+        private String mNextToken = null;
+        private int mCount = 0;
+
+        JsonFeedReader(JsonReader reader) {
+            mReader = reader;
+        }
+
+        @Override
+        public int nextSection() throws IOException {
+            if (mDone) {
+                return SECTION_END;
+            }
+            if (mInArray) {
+                while (mReader.hasNext()) {
+                    mReader.skipValue();
+                }
+                endSection();
+            }
+            if (!mStarted) {
+                mReader.beginObject();
+                mStarted = true;
+            }
+            while (mReader.hasNext()) {
+                String name = mReader.nextName();
+                int section = SECTION_END;
+                if (name.equals("markers")) {
+                    section = SECTION_MARKERS;
+                } else if (name.equals("changed")) {
+                    section = SECTION_CHANGED;
+                } else if (name.equals("deleted")) {
+                    section = SECTION_DELETED;
+                } else if (name.equals("next_token")) {
+                    if (mReader.peek() == JsonToken.NULL) {
+                        mReader.nextNull();
+                        mNextToken = null;
+                    } else {
+                        mNextToken = mReader.nextString();
+                    }
+                    continue;
+                }
+                if (section != SECTION_END) {
+                    mReader.beginArray();
+                    mInArray = true;
+                    mCount = 0;
+                    return section;
+                }
+                mReader.skipValue();
+            }
+            mReader.endObject();
+            mDone = true;
+            return SECTION_END;
+        }
+
+        @Override
+        public Entry nextEntry() throws IOException {
+            if (!mInArray) {
+                return null;
+            }
+            if (mReader.hasNext()) {
+                mCount++;
+                return readMarker(mReader);
+            }
+            endSection();
+            return null;
+        }
+
+        @Override
+        public String nextDeletedId() throws IOException {
+            if (!mInArray) {
+                return null;
+            }
+            if (mReader.hasNext()) {
+                mCount++;
+                return mReader.nextString();
+            }
+            endSection();
+            return null;
+        }
+
+        private void endSection() throws IOException {
+            mReader.endArray();
+            mInArray = false;
+            Log.i(TAG, "Read " + mCount + " items");
+        }
+
+        @Override
+        public String getNextToken() {
+            return mNextToken;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mReader.close();
+        }
+    }
+
+    /**
+     * A binary feed that needs more memory than the reader may take. The same feed as JSON
+     * can still be read, it is streamed without a string table.
+     */
+    public static class FeedTooLargeException extends IOException {
+        FeedTooLargeException(String message) {
+            super(message);
+        }
+    }
+
     public static class Entry {
         public final String id;
         public final String name;
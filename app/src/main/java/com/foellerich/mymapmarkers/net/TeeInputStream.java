@@ -0,0 +1,113 @@
+package com.foellerich.mymapmarkers.net;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Stream copying the bytes read through it to an output stream, so a body can be parsed
+ * while it is spooled. The output always holds a prefix of the input.
+ *
+ * <p>It remembers whether reading the wrapped stream failed, which tells a dropped
+ * connection apart from a body the reader above could not make sense of.
+ */
+public class TeeInputStream extends FilterInputStream {
+    private final OutputStream mOut;
+    private volatile boolean mReadFailed = false;
+    private volatile boolean mClosed = false;
+
+    public TeeInputStream(InputStream in, OutputStream out) {
+        super(in);
+        mOut = out;
+    }
+
+    /**
+     * @return true if reading the wrapped stream failed before this stream was closed
+     */
+    public boolean hasReadFailed() {
+        return mReadFailed;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b;
+        try {
+            b = super.read();
+        } catch (IOException e) {
+            failed();
+            throw e;
+        }
+        if (b != -1) {
+            mOut.write(b);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int n;
+        try {
+            n = super.read(buffer, offset, length);
+        } catch (IOException e) {
+            failed();
+            throw e;
+        }
+        if (n > 0) {
+            mOut.write(buffer, offset, n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // skipped bytes have to reach the output as well
+        if (n <= 0) {
+            return 0;
+        }
+        final byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int count = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+            if (count <= 0) {
+                break;
+            }
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Close the wrapped stream and the output. A read failing because of the close does not
+     * count as a failed read.
+     */
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        try {
+            super.close();
+        } finally {
+            mOut.close();
+        }
+    }
+
+    private void failed() {
+        if (!mClosed) {
+            mReadFailed = true;
+        }
+    }
+}
@@ -15,6 +15,68 @@ public class MarkerContract {
     public static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
 
     public static final String PATH_ENTRIES = "markers";
+    public static final String PATH_BBOX = "bbox";
+    public static final String PATH_NEAR = "near";
+    public static final String PATH_SEARCH = "search";
+    public static final String PATH_ENTRY = "entry";
+    public static final String PATH_SYNC_HISTORY = "sync_history";
+    public static final String PATH_TILES = "tiles";
+
+    /**
+     * Query parameter limiting the number of rows returned by a query on the markers URI.
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+    /**
+     * Query parameters of a page of the markers URI, see {@link Marker#buildPageUri}. A page
+     * in one of the {@code SORT_} orders of {@link Marker} starts after the row with the given
+     * sort key and _id and ends with the row given by the until parameters, or after
+     * {@link #QUERY_PARAMETER_LIMIT} rows.
+     */
+    public static final String QUERY_PARAMETER_SORT = "sort";
+    public static final String QUERY_PARAMETER_AFTER = "after";
+    public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+    public static final String QUERY_PARAMETER_UNTIL = "until";
+    public static final String QUERY_PARAMETER_UNTIL_ID = "until_id";
+
+    /**
+     * Query parameter turning an insert on the markers URI into an insert-or-update keyed on
+     * {@link Marker#COLUMN_NAME_ENTRY_ID}.
+     */
+    public static final String QUERY_PARAMETER_UPSERT = "upsert";
+
+    /**
+     * {@link android.content.ContentResolver#call} method returning the hits and misses of
+     * the row cache behind single marker queries, as {@link #EXTRA_HITS} and
+     * {@link #EXTRA_MISSES}.
+     */
+    public static final String METHOD_ROW_CACHE_STATS = "row_cache_stats";
+    public static final String EXTRA_HITS = "hits";
+    public static final String EXTRA_MISSES = "misses";
+
+    /**
+     * {@link android.content.ContentResolver#call} method deleting the markers with the _ids
+     * in {@link #EXTRA_IDS} with a single statement, however many they are. Returns the
+     * number of rows deleted as {@link #EXTRA_COUNT}.
+     */
+    public static final String METHOD_DELETE_IDS = "delete_ids";
+    public static final String EXTRA_IDS = "ids";
+    public static final String EXTRA_COUNT = "count";
+
+    /**
+     * Query parameters of the bounding box URI, in degrees.
+     */
+    public static final String QUERY_PARAMETER_MIN_LAT = "min_lat";
+    public static final String QUERY_PARAMETER_MAX_LAT = "max_lat";
+    public static final String QUERY_PARAMETER_MIN_LNG = "min_lng";
+    public static final String QUERY_PARAMETER_MAX_LNG = "max_lng";
+
+    /**
+     * Query parameters of the radius URI, center in degrees and radius in meters.
+     */
+    public static final String QUERY_PARAMETER_LAT = "lat";
+    public static final String QUERY_PARAMETER_LNG = "lng";
+    public static final String QUERY_PARAMETER_RADIUS = "radius";
 
     public static class Marker implements BaseColumns {
         public static final String CONTENT_TYPE =
@@ -29,6 +91,243 @@ public class MarkerContract {
         public static final String COLUMN_NAME_ADDRESS = "address";
         public static final String COLUMN_NAME_LAT = "lat";
         public static final String COLUMN_NAME_LNG = "lng";
+        /**
+         * Quadkey of the {@link Tiles} tile containing the marker, set by the provider
+         * whenever lat and lng are written.
+         */
+        public static final String COLUMN_NAME_TILE = "tile";
+        /**
+         * Name of the feed the marker was synced from. Marker ids are only unique within a
+         * source.
+         */
+        public static final String COLUMN_NAME_SOURCE = "source";
+
+        /**
+         * {@link #COLUMN_NAME_NAME} folded for sorting: without accents, case and
+         * punctuation. Set by the provider whenever the name is written.
+         */
+        public static final String COLUMN_NAME_NAME_KEY = "name_key";
+        /**
+         * {@link #COLUMN_NAME_ADDRESS} folded like {@link #COLUMN_NAME_NAME_KEY}.
+         */
+        public static final String COLUMN_NAME_ADDRESS_KEY = "address_key";
+        /**
+         * Time the marker was inserted or last changed, in milliseconds since the epoch. Set
+         * by the provider on every write.
+         */
+        public static final String COLUMN_NAME_CHANGED = "changed";
+
+        /**
+         * Source of markers inserted without one.
+         */
+        public static final String SOURCE_DEFAULT = "default";
+
+        /**
+         * Orders of the pages of {@link #buildPageUri}, each served by an index on its sort
+         * key column.
+         */
+        public static final String SORT_NAME = "name";
+        public static final String SORT_ADDRESS = "address";
+        /** Most recently changed first. */
+        public static final String SORT_RECENT = "recent";
+
+        /**
+         * @param sort one of the {@code SORT_} constants
+         * @return column the pages in that order are keyed on
+         */
+        public static String getSortKeyColumn(String sort) {
+            if (SORT_NAME.equals(sort)) {
+                return COLUMN_NAME_NAME_KEY;
+            } else if (SORT_ADDRESS.equals(sort)) {
+                return COLUMN_NAME_ADDRESS_KEY;
+            } else if (SORT_RECENT.equals(sort)) {
+                return COLUMN_NAME_CHANGED;
+            }
+            throw new IllegalArgumentException("Unknown sort order: " + sort);
+        }
+
+        /**
+         * @param sort one of the {@code SORT_} constants
+         * @return whether the pages in that order run from the largest key down
+         */
+        public static boolean isSortDescending(String sort) {
+            return SORT_RECENT.equals(sort);
+        }
+
+        /**
+         * @param sort one of the {@code SORT_} constants
+         * @return ORDER BY clause of the pages in that order, the _id breaks ties
+         */
+        public static String buildSortOrder(String sort) {
+            String direction = isSortDescending(sort) ? " DESC" : "";
+            return getSortKeyColumn(sort) + direction + "," + _ID + direction;
+        }
+
+        /**
+         * Build the URI of a page of markers. Only the rows of the page are read, however far
+         * into the table it lies.
+         * @param sort one of the {@code SORT_} constants
+         * @param afterKey sort key of the last row of the previous page, or null for the
+         *                 first page
+         * @param afterId _id of the last row of the previous page
+         * @param limit maximum number of rows of the page
+         */
+        public static Uri buildPageUri(String sort, String afterKey, long afterId, int limit) {
+            Uri.Builder builder = CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_SORT, sort);
+            if (afterKey != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_AFTER, afterKey)
+                        .appendQueryParameter(QUERY_PARAMETER_AFTER_ID, Long.toString(afterId));
+            }
+            return builder.appendQueryParameter(QUERY_PARAMETER_LIMIT, Integer.toString(limit))
+                    .build();
+        }
+
+        /**
+         * Build the URI of a page of markers whose last row is known, so that rows inserted
+         * into or deleted from its range grow or shrink the page instead of moving rows
+         * between pages.
+         * @param untilKey sort key of the last row of the page
+         * @param untilId _id of the last row of the page
+         */
+        public static Uri buildPageUri(String sort, String afterKey, long afterId,
+                                       String untilKey, long untilId) {
+            Uri.Builder builder = CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_SORT, sort);
+            if (afterKey != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_AFTER, afterKey)
+                        .appendQueryParameter(QUERY_PARAMETER_AFTER_ID, Long.toString(afterId));
+            }
+            return builder.appendQueryParameter(QUERY_PARAMETER_UNTIL, untilKey)
+                    .appendQueryParameter(QUERY_PARAMETER_UNTIL_ID, Long.toString(untilId))
+                    .build();
+        }
+
+        /**
+         * Build the URI of a single marker by the id it has in its feed.
+         * @param source {@link #COLUMN_NAME_SOURCE} of the marker
+         * @param entryId {@link #COLUMN_NAME_ENTRY_ID} of the marker
+         */
+        public static Uri buildEntryUri(String source, String entryId) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_ENTRY)
+                    .appendPath(source).appendPath(entryId).build();
+        }
+
+        /**
+         * Build the URI of all markers within a bounding box.
+         * @param minLat southern edge
+         * @param minLng western edge, east of {@code maxLng} if the box crosses the antimeridian
+         * @param maxLat northern edge
+         * @param maxLng eastern edge
+         */
+        public static Uri buildBoundingBoxUri(double minLat, double minLng,
+                                              double maxLat, double maxLng) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_BBOX)
+                    .appendQueryParameter(QUERY_PARAMETER_MIN_LAT, Double.toString(minLat))
+                    .appendQueryParameter(QUERY_PARAMETER_MIN_LNG, Double.toString(minLng))
+                    .appendQueryParameter(QUERY_PARAMETER_MAX_LAT, Double.toString(maxLat))
+                    .appendQueryParameter(QUERY_PARAMETER_MAX_LNG, Double.toString(maxLng))
+                    .build();
+        }
+
+        /**
+         * Build the URI of all markers within a radius around a point.
+         * @param lat latitude of the center
+         * @param lng longitude of the center
+         * @param radius radius in meters
+         */
+        public static Uri buildNearUri(double lat, double lng, double radius) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_NEAR)
+                    .appendQueryParameter(QUERY_PARAMETER_LAT, Double.toString(lat))
+                    .appendQueryParameter(QUERY_PARAMETER_LNG, Double.toString(lng))
+                    .appendQueryParameter(QUERY_PARAMETER_RADIUS, Double.toString(radius))
+                    .build();
+        }
+
+        /**
+         * Build the URI of all markers with words in name or address starting with every word
+         * of the search, best matches first.
+         * @param search user input
+         */
+        public static Uri buildSearchUri(String search) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SEARCH).appendPath(search).build();
+        }
+    }
+
+    /**
+     * Freshness of the tiles fetched by the tile sync. A tile without a row was never
+     * fetched.
+     */
+    public static class Tile {
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.mymapmarkers.tiles";
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_TILES).build();
+        public static final String TABLE_NAME = "tile";
+        public static final String COLUMN_NAME_QUADKEY = "quadkey";
+        /** Time the markers of the tile were last fetched, in milliseconds since the epoch. */
+        public static final String COLUMN_NAME_FETCHED = "fetched";
+        /** Time a query last touched the tile, in milliseconds since the epoch. */
+        public static final String COLUMN_NAME_ACCESSED = "accessed";
+        /** ETag of the last fetch, to make the next one conditional. */
+        public static final String COLUMN_NAME_ETAG = "etag";
+    }
+
+    /**
+     * One row per phase of every sync. The rows of one sync share
+     * {@link #COLUMN_NAME_SYNC_START}; only the last {@link #MAX_SYNCS} syncs are kept.
+     */
+    public static class SyncHistory implements BaseColumns {
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.mymapmarkers.sync_history";
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_HISTORY).build();
+        public static final String TABLE_NAME = "sync_history";
+        /** Wall clock time the sync started at, in milliseconds since the epoch. */
+        public static final String COLUMN_NAME_SYNC_START = "sync_start";
+        /** Version code of the app that ran the sync. */
+        public static final String COLUMN_NAME_APP_VERSION = "app_version";
+        /** One of the {@code RESULT_} constants. */
+        public static final String COLUMN_NAME_RESULT = "result";
+        /** One of the {@code PHASE_} constants. */
+        public static final String COLUMN_NAME_PHASE = "phase";
+        /**
+         * Wall time spent in the phase, in milliseconds. Sources are synced in parallel, so
+         * the phases are summed over all threads of the sync.
+         */
+        public static final String COLUMN_NAME_DURATION = "duration";
+        public static final String COLUMN_NAME_BYTES = "bytes";
+        /**
+         * Bytes of the feeds after decompression, only set on the {@link #PHASE_TOTAL} row.
+         * Compared to its {@link #COLUMN_NAME_BYTES} it gives the compression ratio.
+         */
+        public static final String COLUMN_NAME_DECODED_BYTES = "decoded_bytes";
+        public static final String COLUMN_NAME_ENTRIES = "entries";
+        public static final String COLUMN_NAME_OPERATIONS = "operations";
+
+        /** The whole sync: bytes on the wire, entries in the feed, operations applied. */
+        public static final String PHASE_TOTAL = "total";
+        public static final String PHASE_CONNECT = "connect";
+        /** Blocked on the response body or the spool file; bytes on the wire. */
+        public static final String PHASE_DOWNLOAD = "download";
+        /** Tokenizing the feed; bytes after decompression, entries read. */
+        public static final String PHASE_PARSE = "parse";
+        /** Reading local rows; entries read. */
+        public static final String PHASE_QUERY = "query";
+        /** Comparing feed and local rows; entries compared, operations decided on. */
+        public static final String PHASE_DIFF = "diff";
+        /** Writing to the provider; operations applied. */
+        public static final String PHASE_APPLY = "apply";
+        /**
+         * Threads of a pipelined sync waiting on each other. The phases of the threads
+         * overlap, so their durations may add up to more than the total.
+         */
+        public static final String PHASE_WAIT = "wait";
+
+        public static final String RESULT_SUCCESS = "success";
+        public static final String RESULT_NOT_MODIFIED = "not_modified";
+        public static final String RESULT_ERROR = "error";
 
+        public static final int MAX_SYNCS = 100;
     }
 }
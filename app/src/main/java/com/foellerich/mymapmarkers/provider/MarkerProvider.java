@@ -1,15 +1,38 @@
 package com.foellerich.mymapmarkers.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
 
 import com.example.android.common.db.SelectionBuilder;
+import com.example.android.common.db.StatementCache;
+import com.foellerich.mymapmarkers.R;
+import com.foellerich.mymapmarkers.SyncUtils;
+import com.foellerich.mymapmarkers.net.MarkerParser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by foellerich on 26.04.2015.
@@ -17,15 +40,103 @@ import com.example.android.common.db.SelectionBuilder;
 public class MarkerProvider extends ContentProvider {
     MarkerDatabase mDatabaseHelper;
 
+    /**
+     * URIs written inside the {@link #applyBatch(ArrayList)} or
+     * {@link #bulkInsert(Uri, ContentValues[])} running on the current thread, or null outside
+     * of a batch.
+     */
+    private final ThreadLocal<Set<Uri>> mBatchNotifications = new ThreadLocal<Set<Uri>>();
+
     private static String AUTHORITY = MarkerContract.CONTENT_AUTHORITY;
 
     public static final int ROUTE_MARKERS = 1;
     public static final int ROUTE_MARKERS_ID = 2;
+    public static final int ROUTE_MARKERS_BBOX = 3;
+    public static final int ROUTE_MARKERS_NEAR = 4;
+    public static final int ROUTE_MARKERS_SEARCH = 5;
+    public static final int ROUTE_SYNC_HISTORY = 6;
+    public static final int ROUTE_TILES = 7;
+    public static final int ROUTE_MARKERS_ENTRY = 8;
+
+    private static final double EARTH_RADIUS_METERS = 6371000;
+
+    /**
+     * Viewports covering more tiles than this are zoomed out too far to fetch tile by tile.
+     */
+    private static final int MAX_LAZY_TILES = 16;
+
+    /**
+     * Time after which a tile requested from the sync adapter may be requested again.
+     */
+    private static final long TILE_REQUEST_RETRY_MILLIS = 60 * 1000;
+
+    /**
+     * Resolution of {@link MarkerContract.Tile#COLUMN_NAME_ACCESSED}, to not write on every
+     * query.
+     */
+    private static final long TILE_ACCESS_RESOLUTION_MILLIS = 60 * 60 * 1000;
+
+    /**
+     * Tiles requested from the sync adapter, by the time of the request.
+     */
+    private final Map<String, Long> mTileRequests = new HashMap<String, Long>();
+
+    /**
+     * Rows kept by {@link #mRowCache}.
+     */
+    private static final int ROW_CACHE_SIZE = 256;
+
+    /**
+     * Rows recently read by single marker queries, so that repeated lookups of the same
+     * markers skip the database.
+     */
+    private final RowCache mRowCache = new RowCache(ROW_CACHE_SIZE);
+
+    /**
+     * Updates and deletes kept compiled by {@link #mStatements}.
+     */
+    private static final int STATEMENT_CACHE_SIZE = 16;
+
+    /**
+     * Compiled updates and deletes, so that the row by row writes of a sync are only bound
+     * and executed.
+     */
+    private final StatementCache mStatements = new StatementCache(STATEMENT_CACHE_SIZE);
+
+    /**
+     * Rows written by {@link #bulkInsert(Uri, ContentValues[])} between yield points.
+     */
+    private static final int BULK_YIELD_INTERVAL = 100;
+
+    /**
+     * Columns written by the compiled statement of {@link #bulkInsert(Uri, ContentValues[])}.
+     */
+    private static final String[] BULK_INSERT_COLUMNS = new String[]{
+            MarkerContract.Marker.COLUMN_NAME_ENTRY_ID,
+            MarkerContract.Marker.COLUMN_NAME_NAME,
+            MarkerContract.Marker.COLUMN_NAME_ADDRESS,
+            MarkerContract.Marker.COLUMN_NAME_LAT,
+            MarkerContract.Marker.COLUMN_NAME_LNG,
+            MarkerContract.Marker.COLUMN_NAME_TILE,
+            MarkerContract.Marker.COLUMN_NAME_SOURCE,
+            MarkerContract.Marker.COLUMN_NAME_NAME_KEY,
+            MarkerContract.Marker.COLUMN_NAME_ADDRESS_KEY,
+            MarkerContract.Marker.COLUMN_NAME_CHANGED
+    };
 
     public static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
     static {
         sUriMatcher.addURI(AUTHORITY, "markers", ROUTE_MARKERS);
+        // exact paths have to be added before the wildcard, the first match wins
+        sUriMatcher.addURI(AUTHORITY, "markers/" + MarkerContract.PATH_BBOX, ROUTE_MARKERS_BBOX);
+        sUriMatcher.addURI(AUTHORITY, "markers/" + MarkerContract.PATH_NEAR, ROUTE_MARKERS_NEAR);
+        sUriMatcher.addURI(AUTHORITY, "markers/" + MarkerContract.PATH_SEARCH + "/*",
+                ROUTE_MARKERS_SEARCH);
+        sUriMatcher.addURI(AUTHORITY, "markers/" + MarkerContract.PATH_ENTRY + "/*/*",
+                ROUTE_MARKERS_ENTRY);
         sUriMatcher.addURI(AUTHORITY, "markers/*", ROUTE_MARKERS_ID);
+        sUriMatcher.addURI(AUTHORITY, MarkerContract.PATH_SYNC_HISTORY, ROUTE_SYNC_HISTORY);
+        sUriMatcher.addURI(AUTHORITY, MarkerContract.PATH_TILES, ROUTE_TILES);
     }
 
     @Override
@@ -38,31 +149,627 @@ public class MarkerProvider extends ContentProvider {
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
         SQLiteDatabase db = mDatabaseHelper.getReadableDatabase();
         SelectionBuilder builder = new SelectionBuilder();
+        String table = MarkerContract.Marker.TABLE_NAME;
         int uriMatch = sUriMatcher.match(uri);
+        Context ctx = getContext();
+        assert ctx != null;
+        if ((uriMatch == ROUTE_MARKERS_ID || uriMatch == ROUTE_MARKERS_ENTRY)
+                && selection == null) {
+            Cursor c = queryCachedRow(db, uri, uriMatch, projection);
+            if (c != null) {
+                c.setNotificationUri(ctx.getContentResolver(), uri);
+                return c;
+            }
+        }
         switch (uriMatch) {
             case ROUTE_MARKERS_ID:
                 String id = uri.getLastPathSegment();
                 builder.where(MarkerContract.Marker._ID + "=?", id);
+                break;
+            case ROUTE_MARKERS_ENTRY:
+                List<String> segments = uri.getPathSegments();
+                builder.where(MarkerContract.Marker.COLUMN_NAME_SOURCE + "=?", segments.get(2))
+                        .where(MarkerContract.Marker.COLUMN_NAME_ENTRY_ID + "=?",
+                                segments.get(3));
+                break;
+            case ROUTE_MARKERS_BBOX:
+                double minLat = getDoubleParameter(uri, MarkerContract.QUERY_PARAMETER_MIN_LAT);
+                double minLng = getDoubleParameter(uri, MarkerContract.QUERY_PARAMETER_MIN_LNG);
+                double maxLat = getDoubleParameter(uri, MarkerContract.QUERY_PARAMETER_MAX_LAT);
+                double maxLng = getDoubleParameter(uri, MarkerContract.QUERY_PARAMETER_MAX_LNG);
+                whereBoundingBox(builder, minLat, minLng, maxLat, maxLng,
+                        mDatabaseHelper.hasSpatialIndex(db));
+                requestStaleTiles(minLat, minLng, maxLat, maxLng);
+                break;
+            case ROUTE_MARKERS_NEAR:
+                double lat = getDoubleParameter(uri, MarkerContract.QUERY_PARAMETER_LAT);
+                double lng = getDoubleParameter(uri, MarkerContract.QUERY_PARAMETER_LNG);
+                double radius = getDoubleParameter(uri, MarkerContract.QUERY_PARAMETER_RADIUS);
+                whereNear(builder, lat, lng, radius, mDatabaseHelper.hasSpatialIndex(db));
+                double dLat = Math.toDegrees(radius / EARTH_RADIUS_METERS);
+                double dLng = Math.min(180, dLat / Math.max(Math.cos(Math.toRadians(lat)), 1e-6));
+                requestStaleTiles(lat - dLat, wrapLng(lng - dLng), lat + dLat, wrapLng(lng + dLng));
+                break;
+            case ROUTE_MARKERS_SEARCH:
+                String search = uri.getLastPathSegment();
+                whereSearch(builder, search);
+                if (sortOrder == null) {
+                    sortOrder = buildSearchRank(search);
+                }
+                break;
             case ROUTE_MARKERS:
-                builder.table(MarkerContract.Marker.TABLE_NAME)
-                        .where(selection, selectionArgs);
-                Cursor c = builder.query(db, projection, sortOrder);
-                Context ctx = getContext();
-                assert ctx != null;
-                c.setNotificationUri(ctx.getContentResolver(), uri);
-                return c;
+                String sort = uri.getQueryParameter(MarkerContract.QUERY_PARAMETER_SORT);
+                if (sort != null) {
+                    wherePage(builder, uri, sort);
+                    if (sortOrder == null) {
+                        sortOrder = MarkerContract.Marker.buildSortOrder(sort);
+                    }
+                }
+                break;
+            case ROUTE_SYNC_HISTORY:
+                table = MarkerContract.SyncHistory.TABLE_NAME;
+                break;
+            case ROUTE_TILES:
+                table = MarkerContract.Tile.TABLE_NAME;
+                break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
-        }    }
+        }
+        builder.table(table)
+                .where(selection, selectionArgs);
+        String limit = uri.getQueryParameter(MarkerContract.QUERY_PARAMETER_LIMIT);
+        Cursor c = builder.query(db, projection, null, null, sortOrder, limit);
+        c.setNotificationUri(ctx.getContentResolver(), uri);
+        return c;
+    }
+
+    /**
+     * Serve a single marker from {@link #mRowCache}, reading the whole row into it on a miss.
+     * @return cursor with the row, or without rows if there is no such marker, or null if
+     *         the projection asks for more than columns of the marker table
+     */
+    private Cursor queryCachedRow(SQLiteDatabase db, Uri uri, int match, String[] projection) {
+        final String selection;
+        final String[] selectionArgs;
+        Object[] values;
+        if (match == ROUTE_MARKERS_ID) {
+            long id;
+            try {
+                id = Long.parseLong(uri.getLastPathSegment());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            selection = MarkerContract.Marker._ID + "=?";
+            selectionArgs = new String[]{Long.toString(id)};
+            values = mRowCache.get(id);
+        } else {
+            List<String> segments = uri.getPathSegments();
+            selection = MarkerContract.Marker.COLUMN_NAME_SOURCE + "=? AND " +
+                    MarkerContract.Marker.COLUMN_NAME_ENTRY_ID + "=?";
+            selectionArgs = new String[]{segments.get(2), segments.get(3)};
+            values = mRowCache.get(selectionArgs[0], selectionArgs[1]);
+        }
+        String[] columns = mRowCache.getColumns();
+        if (values == null) {
+            final long generation = mRowCache.getGeneration();
+            Cursor c = db.query(MarkerContract.Marker.TABLE_NAME, null, selection, selectionArgs,
+                    null, null, null);
+            try {
+                columns = c.getColumnNames();
+                if (c.moveToFirst()) {
+                    values = readRow(c);
+                    mRowCache.put(generation, columns, values);
+                }
+            } finally {
+                c.close();
+            }
+        }
+        String[] resultColumns = projection != null ? projection : columns;
+        int[] indices = new int[resultColumns.length];
+        for (int i = 0; i < resultColumns.length; i++) {
+            indices[i] = -1;
+            for (int j = 0; j < columns.length; j++) {
+                if (columns[j].equals(resultColumns[i])) {
+                    indices[i] = j;
+                    break;
+                }
+            }
+            if (indices[i] < 0) {
+                return null;
+            }
+        }
+        MatrixCursor cursor = new MatrixCursor(resultColumns, 1);
+        if (values != null) {
+            Object[] row = new Object[indices.length];
+            for (int i = 0; i < indices.length; i++) {
+                row[i] = values[indices[i]];
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    private static Object[] readRow(Cursor c) {
+        Object[] values = new Object[c.getColumnCount()];
+        for (int i = 0; i < values.length; i++) {
+            switch (c.getType(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    values[i] = c.getLong(i);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    values[i] = c.getDouble(i);
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    values[i] = c.getString(i);
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    values[i] = c.getBlob(i);
+                    break;
+                default:
+                    values[i] = null;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return _ids of the rows in {@link #mRowCache} a write with the selection would touch
+     */
+    private long[] selectCachedRows(SQLiteDatabase db, Uri uri, int match,
+                                    SelectionBuilder selection) {
+        if (match == ROUTE_MARKERS_ID) {
+            // the write touches this row at most, no need to ask the database which per row
+            // the sync updates or deletes
+            try {
+                return new long[]{Long.parseLong(uri.getLastPathSegment())};
+            } catch (NumberFormatException e) {
+                return new long[0];
+            }
+        }
+        long[] cached = mRowCache.getIds();
+        if (cached.length == 0) {
+            return cached;
+        }
+        StringBuilder in = new StringBuilder();
+        for (long id : cached) {
+            if (in.length() > 0) {
+                in.append(',');
+            }
+            in.append(id);
+        }
+        Cursor c = new SelectionBuilder().table(MarkerContract.Marker.TABLE_NAME)
+                .where(MarkerContract.Marker._ID + " IN (" + in + ")")
+                .where(selection.getSelection(), selection.getSelectionArgs())
+                .query(db, new String[]{MarkerContract.Marker._ID}, null);
+        try {
+            long[] ids = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * {@link MarkerContract#METHOD_ROW_CACHE_STATS} reports the hits and misses of the row
+     * cache.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (MarkerContract.METHOD_ROW_CACHE_STATS.equals(method)) {
+            Bundle stats = new Bundle();
+            stats.putLong(MarkerContract.EXTRA_HITS, mRowCache.getHitCount());
+            stats.putLong(MarkerContract.EXTRA_MISSES, mRowCache.getMissCount());
+            return stats;
+        }
+        if (MarkerContract.METHOD_DELETE_IDS.equals(method)) {
+            long[] ids = extras != null ? extras.getLongArray(MarkerContract.EXTRA_IDS) : null;
+            if (ids == null) {
+                throw new IllegalArgumentException("Missing " + MarkerContract.EXTRA_IDS);
+            }
+            Bundle result = new Bundle();
+            result.putInt(MarkerContract.EXTRA_COUNT, deleteIds(ids));
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Delete a set of markers by joining against a temporary table of their _ids: one
+     * compiled insert bound per id and a single DELETE, instead of one statement and one
+     * operation per row, and without the limit on the number of arguments of an IN list.
+     */
+    private int deleteIds(long[] ids) {
+        final SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+        final long since = mRowCache.beginWrite();
+        int count;
+        db.beginTransaction();
+        try {
+            db.execSQL(MarkerDatabase.SQL_CREATE_ID_SET);
+            SQLiteStatement insert = db.compileStatement(MarkerDatabase.SQL_INSERT_ID_SET);
+            try {
+                for (long id : ids) {
+                    insert.bindLong(1, id);
+                    insert.executeInsert();
+                }
+            } finally {
+                insert.close();
+            }
+            count = new SelectionBuilder().table(MarkerContract.Marker.TABLE_NAME)
+                    .where(MarkerContract.Marker._ID + " IN (SELECT " + MarkerDatabase.ID_SET_ID +
+                            " FROM " + MarkerDatabase.ID_SET_TABLE_NAME + ")")
+                    .delete(db, mStatements);
+            db.execSQL(MarkerDatabase.SQL_CLEAR_ID_SET);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mRowCache.invalidate(ids, since);
+        }
+        notifyChange(MarkerContract.Marker.CONTENT_URI);
+        return count;
+    }
+
+    /**
+     * Restrict the selection to a bounding box. A box whose western edge lies east of its
+     * eastern edge crosses the antimeridian.
+     *
+     * <p>With a spatial index the candidates come from the R*Tree and the column predicates
+     * only filter out the rounding of its 32 bit coordinates; the unary {@code +} keeps the
+     * planner from picking the lat/lng index over it. As it also drops the column affinity,
+     * the string arguments are cast explicitly. Without one the lat/lng index is used.
+     */
+    static void whereBoundingBox(SelectionBuilder builder, double minLat, double minLng,
+                                 double maxLat, double maxLng, boolean spatialIndex) {
+        final String lat = (spatialIndex ? "+" : "") + MarkerContract.Marker.COLUMN_NAME_LAT;
+        final String lng = (spatialIndex ? "+" : "") + MarkerContract.Marker.COLUMN_NAME_LNG;
+        final String arg = spatialIndex ? "CAST(? AS REAL)" : "?";
+        final boolean crossesAntimeridian = minLng > maxLng;
+        if (spatialIndex) {
+            String rtreeLat = MarkerDatabase.RTREE_MAX_LAT + ">=? AND " +
+                    MarkerDatabase.RTREE_MIN_LAT + "<=?";
+            String rtreeLng = crossesAntimeridian
+                    ? "(" + MarkerDatabase.RTREE_MAX_LNG + ">=? OR " +
+                            MarkerDatabase.RTREE_MIN_LNG + "<=?)"
+                    : MarkerDatabase.RTREE_MAX_LNG + ">=? AND " +
+                            MarkerDatabase.RTREE_MIN_LNG + "<=?";
+            builder.where(MarkerContract.Marker._ID + " IN (SELECT " +
+                            MarkerDatabase.RTREE_ID + " FROM " + MarkerDatabase.RTREE_TABLE_NAME +
+                            " WHERE " + rtreeLat + " AND " + rtreeLng + ")",
+                    Double.toString(minLat), Double.toString(maxLat),
+                    Double.toString(minLng), Double.toString(maxLng));
+        }
+        builder.where(lat + " BETWEEN " + arg + " AND " + arg,
+                Double.toString(minLat), Double.toString(maxLat));
+        if (!crossesAntimeridian) {
+            builder.where(lng + " BETWEEN " + arg + " AND " + arg,
+                    Double.toString(minLng), Double.toString(maxLng));
+        } else {
+            builder.where(lng + ">=" + arg + " OR " + lng + "<=" + arg,
+                    Double.toString(minLng), Double.toString(maxLng));
+        }
+    }
+
+    /**
+     * Restrict the selection to a radius around a point. The bounding box of the circle goes
+     * through {@link #whereBoundingBox}, the circle itself is checked in an equirectangular
+     * approximation, which is exact enough for the radii of a map screen.
+     * @param radius radius in meters
+     */
+    static void whereNear(SelectionBuilder builder, double lat, double lng, double radius,
+                          boolean spatialIndex) {
+        final double dLat = Math.toDegrees(radius / EARTH_RADIUS_METERS);
+        final double cosLat = Math.cos(Math.toRadians(lat));
+        final double dLng = cosLat > 0 ? dLat / cosLat : 180;
+        double minLng = lng - dLng;
+        double maxLng = lng + dLng;
+        if (dLng >= 180) {
+            minLng = -180;
+            maxLng = 180;
+        } else if (minLng < -180) {
+            minLng += 360;
+        } else if (maxLng > 180) {
+            maxLng -= 360;
+        }
+        whereBoundingBox(builder, Math.max(-90, lat - dLat), minLng,
+                Math.min(90, lat + dLat), maxLng, spatialIndex);
+        if (minLng <= maxLng && dLng < 180) {
+            final String dy = "(" + MarkerContract.Marker.COLUMN_NAME_LAT + "-?)";
+            final String dx = "((" + MarkerContract.Marker.COLUMN_NAME_LNG + "-?)*?)";
+            builder.where(dy + "*" + dy + "+" + dx + "*" + dx + "<=?",
+                    Double.toString(lat), Double.toString(lat),
+                    Double.toString(lng), Double.toString(cosLat),
+                    Double.toString(lng), Double.toString(cosLat),
+                    Double.toString(dLat * dLat));
+        }
+    }
+
+    /**
+     * Restrict the selection to the page of {@link MarkerContract.Marker#buildPageUri}, a
+     * range of {@link MarkerContract.Marker#buildSortOrder}. The bounds on the sort key alone
+     * let the index seek to the start of the page; the _id only breaks ties at its edges.
+     */
+    private static void wherePage(SelectionBuilder builder, Uri uri, String sort) {
+        final String key = MarkerContract.Marker.getSortKeyColumn(sort);
+        final String id = MarkerContract.Marker._ID;
+        final boolean descending = MarkerContract.Marker.isSortDescending(sort);
+        final String next = descending ? "<" : ">";
+        final String previous = descending ? ">" : "<";
+        String after = uri.getQueryParameter(MarkerContract.QUERY_PARAMETER_AFTER);
+        if (after != null) {
+            String afterId = Long.toString(
+                    getLongParameter(uri, MarkerContract.QUERY_PARAMETER_AFTER_ID));
+            builder.where(key + next + "=?", after)
+                    .where(key + next + "? OR " + id + next + "CAST(? AS INTEGER)",
+                            after, afterId);
+        }
+        String until = uri.getQueryParameter(MarkerContract.QUERY_PARAMETER_UNTIL);
+        if (until != null) {
+            String untilId = Long.toString(
+                    getLongParameter(uri, MarkerContract.QUERY_PARAMETER_UNTIL_ID));
+            builder.where(key + previous + "=?", until)
+                    .where(key + previous + "? OR " + id + previous + "=CAST(? AS INTEGER)",
+                            until, untilId);
+        }
+    }
+
+    /**
+     * Restrict the selection to markers whose name or address contain words starting with
+     * every word of the search.
+     */
+    private static void whereSearch(SelectionBuilder builder, String search) {
+        String match = buildMatchExpression(search, null);
+        if (match == null) {
+            builder.where("0");
+            return;
+        }
+        builder.where(MarkerContract.Marker._ID + " IN (SELECT docid FROM " +
+                MarkerDatabase.FTS_TABLE_NAME + " WHERE " + MarkerDatabase.FTS_TABLE_NAME +
+                " MATCH ?)", match);
+    }
+
+    /**
+     * Rank markers whose name matches the search before those only matching by address.
+     */
+    private static String buildSearchRank(String search) {
+        String nameMatch = buildMatchExpression(search, MarkerContract.Marker.COLUMN_NAME_NAME);
+        if (nameMatch == null) {
+            return null;
+        }
+        return "CASE WHEN " + MarkerContract.Marker._ID + " IN (SELECT docid FROM " +
+                MarkerDatabase.FTS_TABLE_NAME + " WHERE " + MarkerDatabase.FTS_TABLE_NAME +
+                " MATCH " + DatabaseUtils.sqlEscapeString(nameMatch) + ") THEN 0 ELSE 1 END," +
+                MarkerContract.Marker.COLUMN_NAME_NAME;
+    }
+
+    /**
+     * Turn user input into an FTS prefix query. Everything but letters and digits separates
+     * words, which also keeps FTS operators in the input from taking effect.
+     * @param search user input
+     * @param column column to restrict the words to, or null for all indexed columns
+     * @return MATCH expression, or null if the input contains no words
+     */
+    private static String buildMatchExpression(String search, String column) {
+        if (search == null) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        int length = search.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean wordChar = i < length && Character.isLetterOrDigit(search.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                if (column != null) {
+                    match.append(column).append(':');
+                }
+                match.append(search, start, i).append('*');
+                start = -1;
+            }
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    /**
+     * With the tile sync enabled, request the tiles of a viewport that were never fetched or
+     * went stale right away, and those around it in the background. Every tile of the viewport
+     * is marked as accessed, so it is kept and refreshed by the periodic sync.
+     */
+    private void requestStaleTiles(double minLat, double minLng, double maxLat, double maxLng) {
+        Context ctx = getContext();
+        assert ctx != null;
+        if (!SyncUtils.isTileSyncEnabled(ctx)) {
+            return;
+        }
+        List<String> visible = Tiles.covering(minLat, minLng, maxLat, maxLng, MAX_LAZY_TILES);
+        if (visible == null) {
+            return;
+        }
+        Set<String> neighbours = Tiles.neighbours(visible);
+        long now = System.currentTimeMillis();
+        SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+        Map<String, Long> fetched = queryTilesFetched(db, visible, neighbours);
+        touchTiles(db, visible, fetched, now);
+        List<String> stale = selectTilesToRequest(visible, fetched, now);
+        List<String> staleNeighbours = selectTilesToRequest(neighbours, fetched, now);
+        if (!stale.isEmpty()) {
+            SyncUtils.requestTileSync(stale, true);
+        }
+        if (!staleNeighbours.isEmpty()) {
+            SyncUtils.requestTileSync(staleNeighbours, false);
+        }
+    }
+
+    /**
+     * @return fetch times of the given tiles that have a row
+     */
+    private static Map<String, Long> queryTilesFetched(SQLiteDatabase db,
+                                                       Collection<String> visible,
+                                                       Collection<String> neighbours) {
+        ArrayList<String> keys = new ArrayList<String>(visible);
+        keys.addAll(neighbours);
+        StringBuilder selection = new StringBuilder(MarkerContract.Tile.COLUMN_NAME_QUADKEY)
+                .append(" IN (");
+        for (int i = 0; i < keys.size(); i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        selection.append(")");
+        Map<String, Long> fetched = new HashMap<String, Long>();
+        Cursor c = db.query(MarkerContract.Tile.TABLE_NAME, new String[]{
+                        MarkerContract.Tile.COLUMN_NAME_QUADKEY,
+                        MarkerContract.Tile.COLUMN_NAME_FETCHED},
+                selection.toString(), keys.toArray(new String[keys.size()]),
+                null, null, null);
+        try {
+            while (c.moveToNext()) {
+                fetched.put(c.getString(0), c.getLong(1));
+            }
+        } finally {
+            c.close();
+        }
+        return fetched;
+    }
+
+    private static void touchTiles(SQLiteDatabase db, List<String> quadKeys,
+                                   Map<String, Long> fetched, long now) {
+        db.beginTransaction();
+        try {
+            for (String quadKey : quadKeys) {
+                if (!fetched.containsKey(quadKey)) {
+                    ContentValues values = new ContentValues();
+                    values.put(MarkerContract.Tile.COLUMN_NAME_QUADKEY, quadKey);
+                    values.put(MarkerContract.Tile.COLUMN_NAME_FETCHED, 0);
+                    values.put(MarkerContract.Tile.COLUMN_NAME_ACCESSED, now);
+                    db.insertWithOnConflict(MarkerContract.Tile.TABLE_NAME, null, values,
+                            SQLiteDatabase.CONFLICT_IGNORE);
+                } else {
+                    ContentValues values = new ContentValues();
+                    values.put(MarkerContract.Tile.COLUMN_NAME_ACCESSED, now);
+                    db.update(MarkerContract.Tile.TABLE_NAME, values,
+                            MarkerContract.Tile.COLUMN_NAME_QUADKEY + "=? AND " +
+                                    MarkerContract.Tile.COLUMN_NAME_ACCESSED + "<?",
+                            new String[]{quadKey,
+                                    Long.toString(now - TILE_ACCESS_RESOLUTION_MILLIS)});
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return the tiles that are missing or stale and were not requested just now
+     */
+    private List<String> selectTilesToRequest(Collection<String> quadKeys,
+                                              Map<String, Long> fetched, long now) {
+        List<String> request = new ArrayList<String>();
+        synchronized (mTileRequests) {
+            for (String quadKey : quadKeys) {
+                Long fetchedAt = fetched.get(quadKey);
+                if (fetchedAt != null && fetchedAt > now - Tiles.MAX_AGE_MILLIS) {
+                    continue;
+                }
+                Long requestedAt = mTileRequests.get(quadKey);
+                if (requestedAt != null && requestedAt > now - TILE_REQUEST_RETRY_MILLIS) {
+                    continue;
+                }
+                mTileRequests.put(quadKey, now);
+                request.add(quadKey);
+            }
+        }
+        return request;
+    }
+
+    private static double wrapLng(double lng) {
+        if (lng < -180) {
+            return lng + 360;
+        }
+        if (lng > 180) {
+            return lng - 360;
+        }
+        return lng;
+    }
+
+    /**
+     * Derive the tile of a marker from its position, if the position is written.
+     */
+    private static void putTile(ContentValues values) {
+        Double lat = values.getAsDouble(MarkerContract.Marker.COLUMN_NAME_LAT);
+        Double lng = values.getAsDouble(MarkerContract.Marker.COLUMN_NAME_LNG);
+        if (lat != null && lng != null) {
+            values.put(MarkerContract.Marker.COLUMN_NAME_TILE, Tiles.quadKey(lat, lng));
+        }
+    }
+
+    /**
+     * Derive the sort keys of a marker from the name and address written, and stamp the
+     * write as its last change.
+     */
+    private static void putSortKeys(ContentValues values) {
+        if (values.containsKey(MarkerContract.Marker.COLUMN_NAME_NAME)) {
+            values.put(MarkerContract.Marker.COLUMN_NAME_NAME_KEY, SortKeys.fold(
+                    values.getAsString(MarkerContract.Marker.COLUMN_NAME_NAME)));
+        }
+        if (values.containsKey(MarkerContract.Marker.COLUMN_NAME_ADDRESS)) {
+            values.put(MarkerContract.Marker.COLUMN_NAME_ADDRESS_KEY, SortKeys.fold(
+                    values.getAsString(MarkerContract.Marker.COLUMN_NAME_ADDRESS)));
+        }
+        values.put(MarkerContract.Marker.COLUMN_NAME_CHANGED, System.currentTimeMillis());
+    }
+
+    private static void putDefaultSource(ContentValues values) {
+        if (values.getAsString(MarkerContract.Marker.COLUMN_NAME_SOURCE) == null) {
+            values.put(MarkerContract.Marker.COLUMN_NAME_SOURCE,
+                    MarkerContract.Marker.SOURCE_DEFAULT);
+        }
+    }
+
+    private static double getDoubleParameter(Uri uri, String name) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing parameter " + name + " in uri: " + uri);
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid parameter " + name + " in uri: " + uri);
+        }
+    }
+
+    private static long getLongParameter(Uri uri, String name) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing parameter " + name + " in uri: " + uri);
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid parameter " + name + " in uri: " + uri);
+        }
+    }
 
     @Override
     public String getType(Uri uri) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case ROUTE_MARKERS:
+            case ROUTE_MARKERS_BBOX:
+            case ROUTE_MARKERS_NEAR:
+            case ROUTE_MARKERS_SEARCH:
                 return MarkerContract.Marker.CONTENT_TYPE;
             case ROUTE_MARKERS_ID:
+            case ROUTE_MARKERS_ENTRY:
                 return MarkerContract.Marker.CONTENT_ITEM_TYPE;
+            case ROUTE_SYNC_HISTORY:
+                return MarkerContract.SyncHistory.CONTENT_TYPE;
+            case ROUTE_TILES:
+                return MarkerContract.Tile.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -76,18 +783,259 @@ public class MarkerProvider extends ContentProvider {
         Uri result;
         switch (match) {
             case ROUTE_MARKERS:
-                long id = db.insertOrThrow(MarkerContract.Marker.TABLE_NAME, null, values);
+                long id;
+                putTile(values);
+                putSortKeys(values);
+                putDefaultSource(values);
+                if (uri.getBooleanQueryParameter(MarkerContract.QUERY_PARAMETER_UPSERT, false)) {
+                    id = upsert(db, values);
+                } else {
+                    id = db.insertOrThrow(MarkerContract.Marker.TABLE_NAME, null, values);
+                }
                 result = Uri.parse(MarkerContract.Marker.CONTENT_URI + "/" + id);
                 break;
+            case ROUTE_SYNC_HISTORY:
+                insertSyncHistory(db, new ContentValues[]{values});
+                result = uri;
+                break;
+            case ROUTE_TILES:
+                db.insertOrThrow(MarkerContract.Tile.TABLE_NAME, null, values);
+                result = uri;
+                break;
             case ROUTE_MARKERS_ID:
                 throw new UnsupportedOperationException("Insert not supported on uri: " + uri);
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
+        notifyChange(uri);
+        return result;
+    }
+
+    /**
+     * Insert all rows in one transaction through a single compiled statement, yielding to
+     * readers every {@value #BULK_YIELD_INTERVAL} rows. With the upsert parameter every row
+     * is upserted instead.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        final int match = sUriMatcher.match(uri);
+        if (match == ROUTE_SYNC_HISTORY) {
+            insertSyncHistory(mDatabaseHelper.getWritableDatabase(), values);
+            notifyChange(uri);
+            return values.length;
+        }
+        if (match != ROUTE_MARKERS) {
+            throw new UnsupportedOperationException("Bulk insert not supported on uri: " + uri);
+        }
+        final boolean upsert =
+                uri.getBooleanQueryParameter(MarkerContract.QUERY_PARAMETER_UPSERT, false);
+        final SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+        SQLiteStatement insert = null;
+        beginBatchNotifications();
+        db.beginTransaction();
+        try {
+            if (!upsert) {
+                insert = db.compileStatement(buildInsertStatement());
+            }
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0 && i % BULK_YIELD_INTERVAL == 0) {
+                    db.yieldIfContendedSafely();
+                }
+                putTile(values[i]);
+                putSortKeys(values[i]);
+                putDefaultSource(values[i]);
+                if (upsert) {
+                    upsert(db, values[i]);
+                } else {
+                    bindInsert(insert, values[i]);
+                    insert.executeInsert();
+                }
+            }
+            notifyChange(uri);
+            db.setTransactionSuccessful();
+        } finally {
+            if (insert != null) {
+                insert.close();
+            }
+            db.endTransaction();
+            endBatchNotifications();
+        }
+        return values.length;
+    }
+
+    /**
+     * Insert history rows and drop those of all but the last
+     * {@value MarkerContract.SyncHistory#MAX_SYNCS} syncs.
+     */
+    private static void insertSyncHistory(SQLiteDatabase db, ContentValues[] values) {
+        db.beginTransaction();
+        try {
+            for (ContentValues row : values) {
+                db.insertOrThrow(MarkerContract.SyncHistory.TABLE_NAME, null, row);
+            }
+            db.execSQL(MarkerDatabase.SQL_TRIM_SYNC_HISTORY);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static String buildInsertStatement() {
+        StringBuilder sql = new StringBuilder("INSERT INTO ")
+                .append(MarkerContract.Marker.TABLE_NAME).append(" (");
+        StringBuilder params = new StringBuilder();
+        for (int i = 0; i < BULK_INSERT_COLUMNS.length; i++) {
+            if (i > 0) {
+                sql.append(",");
+                params.append(",");
+            }
+            sql.append(BULK_INSERT_COLUMNS[i]);
+            params.append("?");
+        }
+        return sql.append(") VALUES (").append(params).append(")").toString();
+    }
+
+    private static void bindInsert(SQLiteStatement insert, ContentValues values) {
+        int bound = 0;
+        insert.clearBindings();
+        for (int i = 0; i < BULK_INSERT_COLUMNS.length; i++) {
+            if (values.containsKey(BULK_INSERT_COLUMNS[i])) {
+                DatabaseUtils.bindObjectToProgram(insert, i + 1,
+                        values.get(BULK_INSERT_COLUMNS[i]));
+                bound++;
+            }
+        }
+        if (bound != values.size()) {
+            throw new IllegalArgumentException("Columns not supported by bulk insert: " + values);
+        }
+    }
+
+    /**
+     * Apply all operations in one transaction instead of one implicit transaction per
+     * operation. Operations built with {@code withYieldAllowed(true)} mark the points where
+     * the transaction may be committed early to let waiting readers in.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+        beginBatchNotifications();
+        db.beginTransaction();
+        try {
+            final int numOperations = operations.size();
+            final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+            for (int i = 0; i < numOperations; i++) {
+                final ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && operation.isYieldAllowed()) {
+                    db.yieldIfContendedSafely();
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+            endBatchNotifications();
+        }
+    }
+
+    /**
+     * Notify observers of a write. Inside a batch the write is only recorded, coalesced to
+     * the URI of its collection, and announced once by {@link #endBatchNotifications()}.
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> pending = mBatchNotifications.get();
+        if (pending != null) {
+            pending.add(getCollectionUri(uri));
+            return;
+        }
         Context ctx = getContext();
         assert ctx != null;
         ctx.getContentResolver().notifyChange(uri, null, false);
-        return result;
+    }
+
+    private static Uri getCollectionUri(Uri uri) {
+        switch (sUriMatcher.match(uri)) {
+            case ROUTE_MARKERS:
+            case ROUTE_MARKERS_ID:
+            case ROUTE_MARKERS_ENTRY:
+            case ROUTE_MARKERS_BBOX:
+            case ROUTE_MARKERS_NEAR:
+            case ROUTE_MARKERS_SEARCH:
+                return MarkerContract.Marker.CONTENT_URI;
+            case ROUTE_SYNC_HISTORY:
+                return MarkerContract.SyncHistory.CONTENT_URI;
+            default:
+                return uri;
+        }
+    }
+
+    private void beginBatchNotifications() {
+        mBatchNotifications.set(new HashSet<Uri>());
+    }
+
+    /**
+     * Leave the batch scope and send one notification per distinct collection written to.
+     * Notifications are sent even if the batch failed, as yield points may have committed
+     * part of it.
+     */
+    private void endBatchNotifications() {
+        Set<Uri> pending = mBatchNotifications.get();
+        mBatchNotifications.remove();
+        if (pending == null) {
+            return;
+        }
+        for (Uri uri : pending) {
+            notifyChange(uri);
+        }
+    }
+
+    /**
+     * Update the row with the source and server id given in {@code values}, or insert it if
+     * there is none.
+     * @return local id of the row
+     */
+    private long upsert(SQLiteDatabase db, ContentValues values) {
+        String entryId = values.getAsString(MarkerContract.Marker.COLUMN_NAME_ENTRY_ID);
+        if (entryId == null) {
+            throw new IllegalArgumentException(
+                    "Upsert requires " + MarkerContract.Marker.COLUMN_NAME_ENTRY_ID);
+        }
+        db.beginTransaction();
+        try {
+            long id = -1;
+            Cursor c = db.query(MarkerContract.Marker.TABLE_NAME,
+                    new String[]{MarkerContract.Marker._ID},
+                    MarkerContract.Marker.COLUMN_NAME_SOURCE + "=? AND " +
+                            MarkerContract.Marker.COLUMN_NAME_ENTRY_ID + "=?",
+                    new String[]{
+                            values.getAsString(MarkerContract.Marker.COLUMN_NAME_SOURCE),
+                            entryId},
+                    null, null, null);
+            try {
+                if (c.moveToFirst()) {
+                    id = c.getLong(0);
+                }
+            } finally {
+                c.close();
+            }
+            if (id != -1) {
+                final long since = mRowCache.beginWrite();
+                try {
+                    new SelectionBuilder().table(MarkerContract.Marker.TABLE_NAME)
+                            .where(MarkerContract.Marker._ID + "=?", Long.toString(id))
+                            .update(db, values, mStatements);
+                } finally {
+                    mRowCache.invalidate(new long[]{id}, since);
+                }
+            } else {
+                id = db.insertOrThrow(MarkerContract.Marker.TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+            return id;
+        } finally {
+            db.endTransaction();
+        }
     }
 
     @Override
@@ -98,23 +1046,35 @@ public class MarkerProvider extends ContentProvider {
         int count;
         switch (match) {
             case ROUTE_MARKERS:
-                count = builder.table(MarkerContract.Marker.TABLE_NAME)
+            case ROUTE_MARKERS_ID:
+                builder.table(MarkerContract.Marker.TABLE_NAME);
+                if (match == ROUTE_MARKERS_ID) {
+                    builder.where(MarkerContract.Marker._ID + "=?", uri.getLastPathSegment());
+                }
+                builder.where(selection, selectionArgs);
+                final long since = mRowCache.beginWrite();
+                long[] cached = null;
+                try {
+                    cached = selectCachedRows(db, uri, match, builder);
+                    count = builder.delete(db, mStatements);
+                } finally {
+                    mRowCache.invalidate(cached != null ? cached : mRowCache.getIds(), since);
+                }
+                break;
+            case ROUTE_SYNC_HISTORY:
+                count = builder.table(MarkerContract.SyncHistory.TABLE_NAME)
                         .where(selection, selectionArgs)
-                        .delete(db);
+                        .delete(db, mStatements);
                 break;
-            case ROUTE_MARKERS_ID:
-                String id = uri.getLastPathSegment();
-                count = builder.table(MarkerContract.Marker.TABLE_NAME)
-                        .where(MarkerContract.Marker._ID + "=?", id)
+            case ROUTE_TILES:
+                count = builder.table(MarkerContract.Tile.TABLE_NAME)
                         .where(selection, selectionArgs)
-                        .delete(db);
+                        .delete(db, mStatements);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        Context ctx = getContext();
-        assert ctx != null;
-        ctx.getContentResolver().notifyChange(uri, null, false);
+        notifyChange(uri);
         return count;
     }
 
@@ -126,32 +1086,46 @@ public class MarkerProvider extends ContentProvider {
         int count;
         switch (match) {
             case ROUTE_MARKERS:
-                count = builder.table(MarkerContract.Marker.TABLE_NAME)
-                        .where(selection, selectionArgs)
-                        .update(db, values);
-                break;
             case ROUTE_MARKERS_ID:
-                String id = uri.getLastPathSegment();
-                count = builder.table(MarkerContract.Marker.TABLE_NAME)
-                        .where(MarkerContract.Marker._ID + "=?", id)
+                putTile(values);
+                putSortKeys(values);
+                builder.table(MarkerContract.Marker.TABLE_NAME);
+                if (match == ROUTE_MARKERS_ID) {
+                    builder.where(MarkerContract.Marker._ID + "=?", uri.getLastPathSegment());
+                }
+                builder.where(selection, selectionArgs);
+                final long since = mRowCache.beginWrite();
+                long[] cached = null;
+                try {
+                    cached = selectCachedRows(db, uri, match, builder);
+                    count = builder.update(db, values, mStatements);
+                } finally {
+                    mRowCache.invalidate(cached != null ? cached : mRowCache.getIds(), since);
+                }
+                break;
+            case ROUTE_TILES:
+                count = builder.table(MarkerContract.Tile.TABLE_NAME)
                         .where(selection, selectionArgs)
-                        .update(db, values);
+                        .update(db, values, mStatements);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
 
-        Context ctx = getContext();
-        assert ctx != null;
-        ctx.getContentResolver().notifyChange(uri, null, false);
+        notifyChange(uri);
         return count;
     }
 
     static class MarkerDatabase extends SQLiteOpenHelper {
-        public static final int DATABASE_VERSION = 1;
+        private static final String TAG = "MarkerDatabase";
+        public static final int DATABASE_VERSION = 11;
+        /** First version with the sync history, see {@link #onUpgrade}. */
+        private static final int VERSION_SYNC_HISTORY = 6;
+        private static final int VERSION_DECODED_BYTES = 11;
         public static final String DATABASE_NAME = "mymapmarkers.db";
         private static final String TYPE_TEXT = " TEXT";
-        private static final String TYPE_COORDS = " VARCHAR(20)";
+        private static final String TYPE_COORDS = " REAL";
+        private static final String TYPE_INTEGER = " INTEGER";
         private static final String COMMA_SEP = ",";
         private static final String SQL_CREATE_MARKERS =
                 "CREATE TABLE " + MarkerContract.Marker.TABLE_NAME + " (" +
@@ -160,23 +1134,344 @@ public class MarkerProvider extends ContentProvider {
                         MarkerContract.Marker.COLUMN_NAME_NAME + TYPE_TEXT + COMMA_SEP +
                         MarkerContract.Marker.COLUMN_NAME_ADDRESS + TYPE_TEXT + COMMA_SEP +
                         MarkerContract.Marker.COLUMN_NAME_LAT + TYPE_COORDS + COMMA_SEP +
-                        MarkerContract.Marker.COLUMN_NAME_LNG + TYPE_COORDS + ")";
+                        MarkerContract.Marker.COLUMN_NAME_LNG + TYPE_COORDS + COMMA_SEP +
+                        MarkerContract.Marker.COLUMN_NAME_TILE + TYPE_TEXT + COMMA_SEP +
+                        MarkerContract.Marker.COLUMN_NAME_SOURCE + TYPE_TEXT + " NOT NULL," +
+                        MarkerContract.Marker.COLUMN_NAME_NAME_KEY + TYPE_TEXT +
+                        " NOT NULL DEFAULT ''," +
+                        MarkerContract.Marker.COLUMN_NAME_ADDRESS_KEY + TYPE_TEXT +
+                        " NOT NULL DEFAULT ''," +
+                        MarkerContract.Marker.COLUMN_NAME_CHANGED + TYPE_INTEGER +
+                        " NOT NULL DEFAULT 0)";
+
+        // the sync merges one source at a time, walking its markers ordered by marker id
+        private static final String SQL_CREATE_ENTRY_ID_INDEX =
+                "CREATE UNIQUE INDEX " + MarkerContract.Marker.TABLE_NAME + "_" +
+                        MarkerContract.Marker.COLUMN_NAME_ENTRY_ID + " ON " +
+                        MarkerContract.Marker.TABLE_NAME + " (" +
+                        MarkerContract.Marker.COLUMN_NAME_SOURCE + COMMA_SEP +
+                        MarkerContract.Marker.COLUMN_NAME_ENTRY_ID + ")";
+
+        // the list pages through all markers in one of the sort orders, the _id breaking
+        // ties comes with every index
+        private static final String[] SQL_CREATE_SORT_INDICES = new String[]{
+                "CREATE INDEX " + MarkerContract.Marker.TABLE_NAME + "_sort_name ON " +
+                        MarkerContract.Marker.TABLE_NAME + " (" +
+                        MarkerContract.Marker.COLUMN_NAME_NAME_KEY + ")",
+                "CREATE INDEX " + MarkerContract.Marker.TABLE_NAME + "_sort_address ON " +
+                        MarkerContract.Marker.TABLE_NAME + " (" +
+                        MarkerContract.Marker.COLUMN_NAME_ADDRESS_KEY + ")",
+                "CREATE INDEX " + MarkerContract.Marker.TABLE_NAME + "_sort_recent ON " +
+                        MarkerContract.Marker.TABLE_NAME + " (" +
+                        MarkerContract.Marker.COLUMN_NAME_CHANGED + ")"
+        };
+
+        private static final String SQL_CREATE_COORDS_INDEX =
+                "CREATE INDEX " + MarkerContract.Marker.TABLE_NAME + "_coords ON " +
+                        MarkerContract.Marker.TABLE_NAME + " (" +
+                        MarkerContract.Marker.COLUMN_NAME_LAT + COMMA_SEP +
+                        MarkerContract.Marker.COLUMN_NAME_LNG + ")";
+
+        // the tile sync merges one tile at a time, walking its markers ordered by marker id
+        private static final String SQL_CREATE_TILE_INDEX =
+                "CREATE INDEX " + MarkerContract.Marker.TABLE_NAME + "_tile ON " +
+                        MarkerContract.Marker.TABLE_NAME + " (" +
+                        MarkerContract.Marker.COLUMN_NAME_TILE + COMMA_SEP +
+                        MarkerContract.Marker.COLUMN_NAME_ENTRY_ID + ")";
+
+        // _ids of a set based write, see deleteIds(); temporary tables live with the
+        // connection and are never part of the schema
+        static final String ID_SET_TABLE_NAME = "temp." + MarkerContract.Marker.TABLE_NAME + "_ids";
+        static final String ID_SET_ID = "id";
+        static final String SQL_CREATE_ID_SET =
+                "CREATE TEMP TABLE IF NOT EXISTS " + MarkerContract.Marker.TABLE_NAME + "_ids (" +
+                        ID_SET_ID + " INTEGER PRIMARY KEY)";
+        static final String SQL_INSERT_ID_SET =
+                "INSERT OR IGNORE INTO " + ID_SET_TABLE_NAME + " VALUES (?)";
+        static final String SQL_CLEAR_ID_SET = "DELETE FROM " + ID_SET_TABLE_NAME;
+
+        private static final String SQL_CREATE_TILES =
+                "CREATE TABLE " + MarkerContract.Tile.TABLE_NAME + " (" +
+                        MarkerContract.Tile.COLUMN_NAME_QUADKEY + " TEXT PRIMARY KEY," +
+                        MarkerContract.Tile.COLUMN_NAME_FETCHED + TYPE_INTEGER + COMMA_SEP +
+                        MarkerContract.Tile.COLUMN_NAME_ACCESSED + TYPE_INTEGER + COMMA_SEP +
+                        MarkerContract.Tile.COLUMN_NAME_ETAG + TYPE_TEXT + ")";
+
+        // R*Tree over the marker positions, maintained by triggers on the marker table so
+        // that every write path (single rows, batches, compiled bulk inserts) keeps it in sync
+        static final String RTREE_TABLE_NAME = MarkerContract.Marker.TABLE_NAME + "_rtree";
+        static final String RTREE_ID = "id";
+        static final String RTREE_MIN_LAT = "min_lat";
+        static final String RTREE_MAX_LAT = "max_lat";
+        static final String RTREE_MIN_LNG = "min_lng";
+        static final String RTREE_MAX_LNG = "max_lng";
+        private static final String NEW_LAT =
+                "IFNULL(new." + MarkerContract.Marker.COLUMN_NAME_LAT + ",0)";
+        private static final String NEW_LNG =
+                "IFNULL(new." + MarkerContract.Marker.COLUMN_NAME_LNG + ",0)";
+
+        private static final String SQL_CREATE_RTREE =
+                "CREATE VIRTUAL TABLE " + RTREE_TABLE_NAME + " USING rtree(" +
+                        RTREE_ID + COMMA_SEP + RTREE_MIN_LAT + COMMA_SEP + RTREE_MAX_LAT +
+                        COMMA_SEP + RTREE_MIN_LNG + COMMA_SEP + RTREE_MAX_LNG + ")";
+
+        private static final String SQL_CREATE_RTREE_INSERT_TRIGGER =
+                "CREATE TRIGGER " + RTREE_TABLE_NAME + "_insert AFTER INSERT ON " +
+                        MarkerContract.Marker.TABLE_NAME + " BEGIN INSERT INTO " +
+                        RTREE_TABLE_NAME + " VALUES (new." + MarkerContract.Marker._ID +
+                        COMMA_SEP + NEW_LAT + COMMA_SEP + NEW_LAT + COMMA_SEP +
+                        NEW_LNG + COMMA_SEP + NEW_LNG + "); END";
+
+        private static final String SQL_CREATE_RTREE_UPDATE_TRIGGER =
+                "CREATE TRIGGER " + RTREE_TABLE_NAME + "_update AFTER UPDATE OF " +
+                        MarkerContract.Marker.COLUMN_NAME_LAT + COMMA_SEP +
+                        MarkerContract.Marker.COLUMN_NAME_LNG + " ON " +
+                        MarkerContract.Marker.TABLE_NAME + " BEGIN UPDATE " +
+                        RTREE_TABLE_NAME + " SET " +
+                        RTREE_MIN_LAT + "=" + NEW_LAT + COMMA_SEP +
+                        RTREE_MAX_LAT + "=" + NEW_LAT + COMMA_SEP +
+                        RTREE_MIN_LNG + "=" + NEW_LNG + COMMA_SEP +
+                        RTREE_MAX_LNG + "=" + NEW_LNG +
+                        " WHERE " + RTREE_ID + "=new." + MarkerContract.Marker._ID + "; END";
+
+        private static final String SQL_CREATE_RTREE_DELETE_TRIGGER =
+                "CREATE TRIGGER " + RTREE_TABLE_NAME + "_delete AFTER DELETE ON " +
+                        MarkerContract.Marker.TABLE_NAME + " BEGIN DELETE FROM " +
+                        RTREE_TABLE_NAME + " WHERE " + RTREE_ID + "=old." +
+                        MarkerContract.Marker._ID + "; END";
+
+        // full text index over name and address, reading its content from the marker table;
+        // external content tables have to be told about every change, which the triggers do
+        static final String FTS_TABLE_NAME = MarkerContract.Marker.TABLE_NAME + "_fts";
+
+        private static final String SQL_CREATE_FTS =
+                "CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts4(content=\"" +
+                        MarkerContract.Marker.TABLE_NAME + "\"" + COMMA_SEP +
+                        MarkerContract.Marker.COLUMN_NAME_NAME + COMMA_SEP +
+                        MarkerContract.Marker.COLUMN_NAME_ADDRESS + ")";
+
+        private static final String SQL_FTS_DELETE_OLD =
+                " BEGIN DELETE FROM " + FTS_TABLE_NAME + " WHERE docid=old." +
+                        MarkerContract.Marker._ID + "; END";
+
+        private static final String SQL_FTS_INSERT_NEW =
+                " BEGIN INSERT INTO " + FTS_TABLE_NAME + "(docid" + COMMA_SEP +
+                        MarkerContract.Marker.COLUMN_NAME_NAME + COMMA_SEP +
+                        MarkerContract.Marker.COLUMN_NAME_ADDRESS + ") VALUES (new." +
+                        MarkerContract.Marker._ID + COMMA_SEP + "new." +
+                        MarkerContract.Marker.COLUMN_NAME_NAME + COMMA_SEP + "new." +
+                        MarkerContract.Marker.COLUMN_NAME_ADDRESS + "); END";
+
+        private static final String FTS_COLUMNS =
+                MarkerContract.Marker.COLUMN_NAME_NAME + COMMA_SEP +
+                        MarkerContract.Marker.COLUMN_NAME_ADDRESS;
+
+        private static final String[] SQL_CREATE_FTS_TRIGGERS = new String[]{
+                "CREATE TRIGGER " + FTS_TABLE_NAME + "_before_update BEFORE UPDATE OF " +
+                        FTS_COLUMNS + " ON " + MarkerContract.Marker.TABLE_NAME +
+                        SQL_FTS_DELETE_OLD,
+                "CREATE TRIGGER " + FTS_TABLE_NAME + "_before_delete BEFORE DELETE ON " +
+                        MarkerContract.Marker.TABLE_NAME + SQL_FTS_DELETE_OLD,
+                "CREATE TRIGGER " + FTS_TABLE_NAME + "_after_update AFTER UPDATE OF " +
+                        FTS_COLUMNS + " ON " + MarkerContract.Marker.TABLE_NAME +
+                        SQL_FTS_INSERT_NEW,
+                "CREATE TRIGGER " + FTS_TABLE_NAME + "_after_insert AFTER INSERT ON " +
+                        MarkerContract.Marker.TABLE_NAME + SQL_FTS_INSERT_NEW
+        };
+
+        private static final String SQL_DECODED_BYTES =
+                MarkerContract.SyncHistory.COLUMN_NAME_DECODED_BYTES + TYPE_INTEGER +
+                        " NOT NULL DEFAULT 0";
+
+        // unlike the markers the history is not a copy of online data, it has to survive
+        // upgrades to compare syncs across app versions
+        private static final String SQL_CREATE_SYNC_HISTORY =
+                "CREATE TABLE IF NOT EXISTS " + MarkerContract.SyncHistory.TABLE_NAME + " (" +
+                        MarkerContract.SyncHistory._ID + " INTEGER PRIMARY KEY," +
+                        MarkerContract.SyncHistory.COLUMN_NAME_SYNC_START + TYPE_INTEGER +
+                        COMMA_SEP +
+                        MarkerContract.SyncHistory.COLUMN_NAME_APP_VERSION + TYPE_INTEGER +
+                        COMMA_SEP +
+                        MarkerContract.SyncHistory.COLUMN_NAME_RESULT + TYPE_TEXT + COMMA_SEP +
+                        MarkerContract.SyncHistory.COLUMN_NAME_PHASE + TYPE_TEXT + COMMA_SEP +
+                        MarkerContract.SyncHistory.COLUMN_NAME_DURATION + TYPE_INTEGER +
+                        COMMA_SEP +
+                        MarkerContract.SyncHistory.COLUMN_NAME_BYTES + TYPE_INTEGER + COMMA_SEP +
+                        MarkerContract.SyncHistory.COLUMN_NAME_ENTRIES + TYPE_INTEGER +
+                        COMMA_SEP +
+                        MarkerContract.SyncHistory.COLUMN_NAME_OPERATIONS + TYPE_INTEGER +
+                        COMMA_SEP + SQL_DECODED_BYTES + ")";
+
+        private static final String SQL_ADD_DECODED_BYTES =
+                "ALTER TABLE " + MarkerContract.SyncHistory.TABLE_NAME + " ADD COLUMN " +
+                        SQL_DECODED_BYTES;
+
+        static final String SQL_TRIM_SYNC_HISTORY =
+                "DELETE FROM " + MarkerContract.SyncHistory.TABLE_NAME + " WHERE " +
+                        MarkerContract.SyncHistory.COLUMN_NAME_SYNC_START + " NOT IN (" +
+                        "SELECT DISTINCT " + MarkerContract.SyncHistory.COLUMN_NAME_SYNC_START +
+                        " FROM " + MarkerContract.SyncHistory.TABLE_NAME + " ORDER BY " +
+                        MarkerContract.SyncHistory.COLUMN_NAME_SYNC_START + " DESC LIMIT " +
+                        MarkerContract.SyncHistory.MAX_SYNCS + ")";
+
+        private static final String SQL_DELETE_FTS =
+                "DROP TABLE IF EXISTS " + FTS_TABLE_NAME;
 
         private static final String SQL_DELETE_MARKERS =
                 "DROP TABLE IF EXISTS " + MarkerContract.Marker.TABLE_NAME;
+
+        private static final String SQL_DELETE_RTREE =
+                "DROP TABLE IF EXISTS " + RTREE_TABLE_NAME;
+
+        private static final String SQL_DELETE_TILES =
+                "DROP TABLE IF EXISTS " + MarkerContract.Tile.TABLE_NAME;
+
+        private volatile Boolean mHasSpatialIndex = null;
+
+        private final Context mContext;
+
         public MarkerDatabase(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
+            mContext = context;
         }
 
+        /**
+         * Every connection keeps its compiled queries by their SQL. The list pages, map
+         * viewports, searches and the sync use more shapes of queries than the default of 25,
+         * which would recompile them in turn.
+         */
         @Override
-        public void onCreate(SQLiteDatabase db) {db.execSQL(SQL_CREATE_MARKERS);}
+        public void onConfigure(SQLiteDatabase db) {
+            db.setMaxSqlCacheSize(SQLiteDatabase.MAX_SQL_CACHE_SIZE);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL(SQL_CREATE_SYNC_HISTORY);
+            db.execSQL(SQL_CREATE_MARKERS);
+            db.execSQL(SQL_CREATE_ENTRY_ID_INDEX);
+            for (String index : SQL_CREATE_SORT_INDICES) {
+                db.execSQL(index);
+            }
+            db.execSQL(SQL_CREATE_COORDS_INDEX);
+            db.execSQL(SQL_CREATE_TILE_INDEX);
+            db.execSQL(SQL_CREATE_TILES);
+            db.execSQL(SQL_CREATE_FTS);
+            for (String trigger : SQL_CREATE_FTS_TRIGGERS) {
+                db.execSQL(trigger);
+            }
+            createSpatialIndex(db);
+            if (!SyncUtils.isTileSyncEnabled(mContext)) {
+                importSnapshot(db);
+            }
+        }
+
+        private void createSpatialIndex(SQLiteDatabase db) {
+            try {
+                db.execSQL(SQL_CREATE_RTREE);
+            } catch (SQLiteException e) {
+                // not every SQLite build on the devices ships the rtree module
+                Log.w(TAG, "R*Tree not available, falling back to the lat/lng index");
+                return;
+            }
+            db.execSQL(SQL_CREATE_RTREE_INSERT_TRIGGER);
+            db.execSQL(SQL_CREATE_RTREE_UPDATE_TRIGGER);
+            db.execSQL(SQL_CREATE_RTREE_DELETE_TRIGGER);
+        }
+
+        /**
+         * Fill the new marker table from the snapshot bundled in
+         * {@code res/raw/markers_snapshot.json}, so the first launch shows markers before the
+         * first sync finished. The sync picks up with a delta from the token of the snapshot.
+         * A snapshot that cannot be read or stored leaves the table empty and no token, so
+         * the first sync is a full one. Nothing it throws may escape, that would fail the
+         * creation of the database on every open.
+         */
+        private void importSnapshot(SQLiteDatabase db) {
+            final long start = System.currentTimeMillis();
+            final InputStream in = mContext.getResources().openRawResource(R.raw.markers_snapshot);
+            final SQLiteStatement insert = db.compileStatement(buildInsertStatement());
+            int count = 0;
+            try {
+                MarkerParser.FeedReader reader = new MarkerParser(true).open(in);
+                String nextToken;
+                try {
+                    int section;
+                    while ((section = reader.nextSection())
+                            != MarkerParser.FeedReader.SECTION_END) {
+                        if (section != MarkerParser.FeedReader.SECTION_MARKERS) {
+                            continue;
+                        }
+                        MarkerParser.Entry entry;
+                        while ((entry = reader.nextEntry()) != null) {
+                            bindInsert(insert, toValues(entry));
+                            insert.executeInsert();
+                            count++;
+                        }
+                    }
+                    nextToken = reader.getNextToken();
+                } finally {
+                    reader.close();
+                }
+                // only once all rows are in, a partial table must not skip the full sync
+                SyncUtils.setBootstrapToken(mContext, nextToken);
+                Log.i(TAG, "Imported " + count + " bundled markers in "
+                        + (System.currentTimeMillis() - start) + " ms");
+            } catch (IOException e) {
+                discardSnapshot(db, e);
+            } catch (RuntimeException e) {
+                // e.g. a SQLiteConstraintException on a duplicate id
+                discardSnapshot(db, e);
+            } finally {
+                insert.close();
+            }
+        }
+
+        private static void discardSnapshot(SQLiteDatabase db, Exception e) {
+            Log.w(TAG, "Bundled snapshot not imported: " + e.toString());
+            db.delete(MarkerContract.Marker.TABLE_NAME, null, null);
+        }
+
+        private static ContentValues toValues(MarkerParser.Entry entry) {
+            ContentValues values = new ContentValues();
+            values.put(MarkerContract.Marker.COLUMN_NAME_SOURCE,
+                    MarkerContract.Marker.SOURCE_DEFAULT);
+            values.put(MarkerContract.Marker.COLUMN_NAME_ENTRY_ID, entry.id);
+            values.put(MarkerContract.Marker.COLUMN_NAME_NAME, entry.name);
+            values.put(MarkerContract.Marker.COLUMN_NAME_ADDRESS, entry.address);
+            values.put(MarkerContract.Marker.COLUMN_NAME_LAT, entry.lat);
+            values.put(MarkerContract.Marker.COLUMN_NAME_LNG, entry.lng);
+            putTile(values);
+            putSortKeys(values);
+            return values;
+        }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             // this database is only a cache for online data
-            // so on upgrade just discard the data and start over
+            // so on upgrade just discard the data and start over, except for the history
+            db.execSQL(SQL_DELETE_FTS);
+            db.execSQL(SQL_DELETE_RTREE);
             db.execSQL(SQL_DELETE_MARKERS);
+            db.execSQL(SQL_DELETE_TILES);
+            if (oldVersion >= VERSION_SYNC_HISTORY && oldVersion < VERSION_DECODED_BYTES) {
+                db.execSQL(SQL_ADD_DECODED_BYTES);
+            }
             onCreate(db);
         }
+
+        /**
+         * @return whether the R*Tree could be created on this device
+         */
+        boolean hasSpatialIndex(SQLiteDatabase db) {
+            Boolean hasSpatialIndex = mHasSpatialIndex;
+            if (hasSpatialIndex == null) {
+                hasSpatialIndex = DatabaseUtils.longForQuery(db,
+                        "SELECT COUNT(*) FROM sqlite_master WHERE type='table' AND name=?",
+                        new String[]{RTREE_TABLE_NAME}) > 0;
+                mHasSpatialIndex = hasSpatialIndex;
+            }
+            return hasSpatialIndex;
+        }
     }
 }
@@ -0,0 +1,182 @@
+package com.foellerich.mymapmarkers.provider;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of whole marker rows, found by _id or by source and marker id.
+ *
+ * <p>Reads and writes race without a lock around the database: a row read before a write
+ * may arrive after it. So a row is only stored if no write started since it was read, see
+ * {@link #getGeneration()}, and a write drops the rows it touched and every row stored while
+ * it ran, see {@link #beginWrite()} and {@link #invalidate(long[], long)}. Once a write
+ * returned, the cache holds none of its old rows.
+ *
+ * <p>Thread safe.
+ */
+class RowCache {
+
+    private static class Row {
+        final Object[] values;
+        final long generation;
+
+        Row(Object[] values, long generation) {
+            this.values = values;
+            this.generation = generation;
+        }
+    }
+
+    private final int mMaxSize;
+
+    private final LinkedHashMap<Long, Row> mRows;
+    private final Map<String, Long> mIdsByEntry = new HashMap<String, Long>();
+
+    private String[] mColumns = null;
+    private int mIdColumn;
+    private int mSourceColumn;
+    private int mEntryIdColumn;
+
+    private long mGeneration = 0;
+    private long mHits = 0;
+    private long mMisses = 0;
+
+    RowCache(int maxSize) {
+        mMaxSize = maxSize;
+        mRows = new LinkedHashMap<Long, Row>(maxSize, 0.75f, true);
+    }
+
+    /**
+     * @return columns of the cached rows, or null before the first row was stored
+     */
+    synchronized String[] getColumns() {
+        return mColumns;
+    }
+
+    /**
+     * @return values of the row in {@link #getColumns()} order, or null on a miss
+     */
+    synchronized Object[] get(long id) {
+        Row row = mRows.get(id);
+        if (row == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return row.values;
+    }
+
+    /**
+     * @return values of the row in {@link #getColumns()} order, or null on a miss
+     */
+    synchronized Object[] get(String source, String entryId) {
+        Long id = mIdsByEntry.get(entryKey(source, entryId));
+        if (id == null) {
+            mMisses++;
+            return null;
+        }
+        return get(id);
+    }
+
+    /**
+     * @return generation to hand to {@link #put(long, String[], Object[])} with a row read
+     *         after this call
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Store a row, unless a write started since {@code generation} was taken.
+     * @param columns columns of all marker rows, in the order of {@code values}
+     */
+    synchronized void put(long generation, String[] columns, Object[] values) {
+        if (generation != mGeneration) {
+            return;
+        }
+        if (mColumns == null) {
+            mColumns = columns;
+            for (int i = 0; i < columns.length; i++) {
+                if (MarkerContract.Marker._ID.equals(columns[i])) {
+                    mIdColumn = i;
+                } else if (MarkerContract.Marker.COLUMN_NAME_SOURCE.equals(columns[i])) {
+                    mSourceColumn = i;
+                } else if (MarkerContract.Marker.COLUMN_NAME_ENTRY_ID.equals(columns[i])) {
+                    mEntryIdColumn = i;
+                }
+            }
+        }
+        long id = ((Number) values[mIdColumn]).longValue();
+        remove(id);
+        mRows.put(id, new Row(values, generation));
+        mIdsByEntry.put(entryKey(values), id);
+        if (mRows.size() > mMaxSize) {
+            remove(mRows.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Start a write, so that rows read before it are not stored anymore.
+     * @return generation to hand to {@link #invalidate(long[], long)}
+     */
+    synchronized long beginWrite() {
+        return ++mGeneration;
+    }
+
+    /**
+     * @return _ids of the cached rows, to find those a write is going to touch
+     */
+    synchronized long[] getIds() {
+        long[] ids = new long[mRows.size()];
+        int i = 0;
+        for (Long id : mRows.keySet()) {
+            ids[i++] = id;
+        }
+        return ids;
+    }
+
+    /**
+     * Finish a write: drop the rows it touched and those stored since it started.
+     * @param ids _ids of the rows written
+     * @param since return value of the matching {@link #beginWrite()}
+     */
+    synchronized void invalidate(long[] ids, long since) {
+        for (long id : ids) {
+            remove(id);
+        }
+        Iterator<Map.Entry<Long, Row>> rows = mRows.entrySet().iterator();
+        while (rows.hasNext()) {
+            Row row = rows.next().getValue();
+            if (row.generation >= since) {
+                mIdsByEntry.remove(entryKey(row.values));
+                rows.remove();
+            }
+        }
+        mGeneration++;
+    }
+
+    synchronized long getHitCount() {
+        return mHits;
+    }
+
+    synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    private void remove(long id) {
+        Row row = mRows.remove(id);
+        if (row != null) {
+            mIdsByEntry.remove(entryKey(row.values));
+        }
+    }
+
+    private String entryKey(Object[] values) {
+        return entryKey((String) values[mSourceColumn], (String) values[mEntryIdColumn]);
+    }
+
+    private static String entryKey(String source, String entryId) {
+        // a marker id may contain anything but NUL
+        return source + '\0' + entryId;
+    }
+}
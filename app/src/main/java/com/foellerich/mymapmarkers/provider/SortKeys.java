@@ -0,0 +1,44 @@
+package com.foellerich.mymapmarkers.provider;
+
+import java.text.Normalizer;
+
+/**
+ * Sort keys of the name and address of a marker, written next to them by the provider so
+ * that sorting the list is a walk over an index of plain binary strings.
+ *
+ * <p>A key is the text decomposed, without accents, lower case and with every run of other
+ * characters than letters and digits turned into a single space. That sorts "&Eacute;mile"
+ * with "emile" and ignores punctuation, independent of the locale of the device the keys
+ * were computed on.
+ */
+class SortKeys {
+    private SortKeys() {}
+
+    /**
+     * @return sort key of the text, empty for null
+     */
+    static String fold(String text) {
+        if (text == null) {
+            return "";
+        }
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder key = new StringBuilder(decomposed.length());
+        boolean separated = false;
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (!Character.isLetterOrDigit(c)) {
+                separated = true;
+                continue;
+            }
+            if (separated && key.length() > 0) {
+                key.append(' ');
+            }
+            separated = false;
+            key.append(Character.toLowerCase(c));
+        }
+        return key.toString();
+    }
+}
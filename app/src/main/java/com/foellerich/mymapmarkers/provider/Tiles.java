@@ -0,0 +1,130 @@
+package com.foellerich.mymapmarkers.provider;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Web Mercator tiles of a single zoom level, named by their quadkey.
+ *
+ * <p>The quadkey of a tile has one digit per zoom level, so the tiles of a zoom level sort
+ * and compare as plain strings and a key is a prefix of the keys of all tiles within it.
+ */
+public class Tiles {
+    private Tiles() {}
+
+    /**
+     * Zoom level markers are synced at. A tile spans 0.35&deg; of longitude, about 39 km at
+     * the equator.
+     */
+    public static final int ZOOM = 10;
+
+    /**
+     * Age after which the markers of a tile are fetched again.
+     */
+    public static final long MAX_AGE_MILLIS = 6 * 60 * 60 * 1000;
+
+    /**
+     * Time after its last access a tile and its markers are dropped.
+     */
+    public static final long EVICT_AGE_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    private static final int TILES_PER_AXIS = 1 << ZOOM;
+
+    // Web Mercator is cut off where it maps latitudes to a square
+    private static final double MAX_LAT = 85.05112878;
+
+    /**
+     * @return quadkey of the tile containing the point
+     */
+    public static String quadKey(double lat, double lng) {
+        return quadKey(tileX(lng), tileY(lat));
+    }
+
+    /**
+     * Quadkeys of the tiles covering a bounding box, in rows from north west to south east.
+     * @param minLng western edge, east of {@code maxLng} if the box crosses the antimeridian
+     * @param maxTiles tile count above which the box is considered zoomed out too far
+     * @return quadkeys, or null if more than {@code maxTiles} tiles would be needed
+     */
+    public static List<String> covering(double minLat, double minLng, double maxLat,
+                                        double maxLng, int maxTiles) {
+        final int minX = tileX(minLng);
+        int maxX = tileX(maxLng);
+        if (maxX < minX || (maxX == minX && minLng > maxLng)) {
+            maxX += TILES_PER_AXIS;
+        }
+        final int minY = tileY(maxLat);
+        final int maxY = tileY(minLat);
+        if ((long) (maxX - minX + 1) * (maxY - minY + 1) > maxTiles) {
+            return null;
+        }
+        List<String> keys = new ArrayList<String>();
+        for (int y = minY; y <= maxY; y++) {
+            for (int x = minX; x <= maxX; x++) {
+                keys.add(quadKey(x % TILES_PER_AXIS, y));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return quadkeys of the tiles around the given ones which are not given themselves
+     */
+    public static Set<String> neighbours(List<String> quadKeys) {
+        Set<String> neighbours = new LinkedHashSet<String>();
+        for (String quadKey : quadKeys) {
+            int[] xy = parse(quadKey);
+            for (int dy = -1; dy <= 1; dy++) {
+                int y = xy[1] + dy;
+                if (y < 0 || y >= TILES_PER_AXIS) {
+                    continue;
+                }
+                for (int dx = -1; dx <= 1; dx++) {
+                    int x = (xy[0] + dx + TILES_PER_AXIS) % TILES_PER_AXIS;
+                    neighbours.add(quadKey(x, y));
+                }
+            }
+        }
+        neighbours.removeAll(quadKeys);
+        return neighbours;
+    }
+
+    private static int tileX(double lng) {
+        int x = (int) Math.floor((lng + 180) / 360 * TILES_PER_AXIS);
+        return Math.max(0, Math.min(TILES_PER_AXIS - 1, x));
+    }
+
+    private static int tileY(double lat) {
+        double sinLat = Math.sin(Math.toRadians(Math.max(-MAX_LAT, Math.min(MAX_LAT, lat))));
+        double y = 0.5 - Math.log((1 + sinLat) / (1 - sinLat)) / (4 * Math.PI);
+        return Math.max(0, Math.min(TILES_PER_AXIS - 1, (int) Math.floor(y * TILES_PER_AXIS)));
+    }
+
+    private static String quadKey(int x, int y) {
+        char[] key = new char[ZOOM];
+        for (int i = 0; i < ZOOM; i++) {
+            int mask = 1 << (ZOOM - 1 - i);
+            key[i] = (char) ('0' + ((x & mask) != 0 ? 1 : 0) + ((y & mask) != 0 ? 2 : 0));
+        }
+        return new String(key);
+    }
+
+    private static int[] parse(String quadKey) {
+        if (quadKey.length() != ZOOM) {
+            throw new IllegalArgumentException("Not a tile of zoom " + ZOOM + ": " + quadKey);
+        }
+        int x = 0;
+        int y = 0;
+        for (int i = 0; i < ZOOM; i++) {
+            int digit = quadKey.charAt(i) - '0';
+            if (digit < 0 || digit > 3) {
+                throw new IllegalArgumentException("Invalid quadkey: " + quadKey);
+            }
+            x = (x << 1) | (digit & 1);
+            y = (y << 1) | (digit >> 1);
+        }
+        return new int[]{x, y};
+    }
+}
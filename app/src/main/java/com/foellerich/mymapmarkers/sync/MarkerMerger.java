@@ -0,0 +1,186 @@
+package com.foellerich.mymapmarkers.sync;
+
+import com.foellerich.mymapmarkers.net.MarkerParser;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+
+/**
+ * Sort-merge join between the remote feed and the local marker table.
+ *
+ * <p>Both sides have to be ordered by marker id. Remote entries are pushed in one at a time
+ * through {@link #merge(MarkerParser.Entry)}, the local rows are pulled from
+ * {@link LocalMarkers} as the walk advances, and the resulting writes are handed to
+ * {@link Operations}. Nothing but the current row of each side is held, so the caller
+ * decides how much memory the sync takes by how often it flushes its operations.
+ *
+ * <p>An entry that arrives out of order, or a second time, can no longer be matched: the
+ * walk already passed its local row. Such entries are held in memory until
+ * {@link #finish()} inserts them, the last one of an id winning. A feed that is not ordered
+ * at all still merges correctly, but takes memory for every entry and rewrites every row.
+ *
+ * <p>Ids are compared with {@link String#compareTo(String)}, which agrees with SQLite's
+ * {@code BINARY} collation for the ASCII ids the server hands out. Coordinates are compared
+ * at 10^-7 degrees, the resolution of the binary feed: a row stored from a JSON feed with
+ * more decimals is not rewritten when the same marker arrives rounded in a binary feed.
+ */
+public class MarkerMerger {
+
+    /** Fixed point scale of the coordinates of the binary feed. */
+    private static final double COORDINATE_SCALE = 1e7;
+
+    /**
+     * Local rows, ordered by marker id.
+     */
+    public interface LocalMarkers {
+        boolean moveToNext();
+        long getId();
+        String getEntryId();
+        String getName();
+        String getAddress();
+        double getLat();
+        double getLng();
+    }
+
+    /**
+     * Receiver of the writes the merge decides on.
+     */
+    public interface Operations {
+        /**
+         * Insert a marker, or update the one with the same id that appeared since the merge
+         * read the local rows.
+         */
+        void insert(MarkerParser.Entry entry);
+        void update(long id, MarkerParser.Entry entry);
+        void delete(long id);
+    }
+
+    private final LocalMarkers mLocal;
+    private final Operations mOperations;
+
+    private boolean mStarted = false;
+    private boolean mHasLocal = false;
+    private String mLastEntryId = null;
+    private final LinkedHashMap<String, MarkerParser.Entry> mUnordered =
+            new LinkedHashMap<String, MarkerParser.Entry>();
+
+    private int mNumEntries = 0;
+    private int mNumInserts = 0;
+    private int mNumUpdates = 0;
+    private int mNumDeletes = 0;
+
+    public MarkerMerger(LocalMarkers local, Operations operations) {
+        mLocal = local;
+        mOperations = operations;
+    }
+
+    /**
+     * Merge the next remote entry.
+     * @param entry remote entry, held until {@link #finish()} if its id is not greater than
+     *              the one of the previous entry
+     * @throws IOException if the entry has no id
+     */
+    public void merge(MarkerParser.Entry entry) throws IOException {
+        if (entry.id == null) {
+            throw new IOException("Marker without _id in feed");
+        }
+        if (mLastEntryId != null && entry.id.compareTo(mLastEntryId) <= 0) {
+            // re-put, so that the order of insertion follows the last occurrence
+            mUnordered.remove(entry.id);
+            mUnordered.put(entry.id, entry);
+            return;
+        }
+        mLastEntryId = entry.id;
+        start();
+
+        while (mHasLocal) {
+            String localId = mLocal.getEntryId();
+            int cmp = localId == null ? -1 : localId.compareTo(entry.id);
+            if (cmp > 0) {
+                break;
+            }
+            mNumEntries++;
+            if (cmp < 0) {
+                mOperations.delete(mLocal.getId());
+                mNumDeletes++;
+                mHasLocal = mLocal.moveToNext();
+            } else {
+                if (isChanged(entry)) {
+                    mOperations.update(mLocal.getId(), entry);
+                    mNumUpdates++;
+                }
+                mHasLocal = mLocal.moveToNext();
+                return;
+            }
+        }
+
+        mOperations.insert(entry);
+        mNumInserts++;
+    }
+
+    /**
+     * Delete all local rows that were not matched by the feed, then insert the entries that
+     * arrived out of order.
+     *
+     * <p>Their local rows, if any, were deleted or updated by the walk already, so the
+     * inserts have to be applied after all deletes handed out before them.
+     */
+    public void finish() {
+        start();
+        while (mHasLocal) {
+            mNumEntries++;
+            mOperations.delete(mLocal.getId());
+            mNumDeletes++;
+            mHasLocal = mLocal.moveToNext();
+        }
+        for (MarkerParser.Entry entry : mUnordered.values()) {
+            mOperations.insert(entry);
+            mNumInserts++;
+        }
+        mUnordered.clear();
+    }
+
+    private void start() {
+        if (!mStarted) {
+            mHasLocal = mLocal.moveToNext();
+            mStarted = true;
+        }
+    }
+
+    private boolean isChanged(MarkerParser.Entry entry) {
+        return (entry.name != null && !entry.name.equals(mLocal.getName())) ||
+                (entry.address != null && !entry.address.equals(mLocal.getAddress())) ||
+                !isSameCoordinate(entry.lat, mLocal.getLat()) ||
+                !isSameCoordinate(entry.lng, mLocal.getLng());
+    }
+
+    /**
+     * @return whether both coordinates round to the same fixed point value of the binary feed
+     */
+    static boolean isSameCoordinate(double a, double b) {
+        return a == b || Math.round(a * COORDINATE_SCALE) == Math.round(b * COORDINATE_SCALE);
+    }
+
+    /**
+     * @return number of distinct ids that arrived out of order, inserted by {@link #finish()}
+     */
+    public int getNumUnordered() {
+        return mUnordered.size();
+    }
+
+    public int getNumEntries() {
+        return mNumEntries;
+    }
+
+    public int getNumInserts() {
+        return mNumInserts;
+    }
+
+    public int getNumUpdates() {
+        return mNumUpdates;
+    }
+
+    public int getNumDeletes() {
+        return mNumDeletes;
+    }
+}
@@ -0,0 +1,216 @@
+package com.foellerich.mymapmarkers.sync;
+
+import com.foellerich.mymapmarkers.net.MarkerParser;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * {@link MarkerParser.FeedReader} that reads ahead of its caller.
+ *
+ * <p>A producer thread drives the wrapped reader and hands the items on in chunks through a
+ * bounded queue, so the caller can write one chunk to the database while the next one is
+ * still coming in from the network. Once the queue is full the producer stops reading, which
+ * caps the memory at {@code capacity} chunks however large the feed is.
+ *
+ * <p>The wrapped reader is only touched by the producer thread, and the trace handed in is
+ * only written by it. The trace may be read after {@link #close()}.
+ */
+public class PipelinedFeedReader implements MarkerParser.FeedReader {
+
+    private static final Chunk END_OF_SECTION = new Chunk(SECTION_END, false);
+
+    private final MarkerParser.FeedReader mSource;
+    private final int mChunkSize;
+    private final SyncTrace mTrace;
+    private final BlockingQueue<Chunk> mQueue;
+    private final Thread mProducer;
+
+    private Chunk mChunk = null;
+    private int mIndex = 0;
+    private Chunk mPending = null;
+    private String mNextToken = null;
+    private boolean mDone = false;
+
+    /**
+     * @param source   reader to drive from the producer thread
+     * @param chunkSize items per chunk
+     * @param capacity chunks the producer may read ahead
+     * @param trace    trace charged with the producer's parse and download time
+     */
+    public PipelinedFeedReader(MarkerParser.FeedReader source, int chunkSize, int capacity,
+                               SyncTrace trace) {
+        mSource = source;
+        mChunkSize = chunkSize;
+        mTrace = trace;
+        mQueue = new ArrayBlockingQueue<Chunk>(capacity);
+        mProducer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                produce();
+            }
+        }, "PipelinedFeedReader");
+        mProducer.start();
+    }
+
+    @Override
+    public int nextSection() throws IOException {
+        // drop what is left of the current section
+        Chunk chunk = mPending;
+        mPending = null;
+        while (chunk == null || !chunk.first) {
+            if (mDone) {
+                return SECTION_END;
+            }
+            chunk = take();
+        }
+        mChunk = chunk;
+        mIndex = 0;
+        return chunk.section;
+    }
+
+    @Override
+    public MarkerParser.Entry nextEntry() throws IOException {
+        return (MarkerParser.Entry) nextItem();
+    }
+
+    @Override
+    public String nextDeletedId() throws IOException {
+        return (String) nextItem();
+    }
+
+    private Object nextItem() throws IOException {
+        while (mChunk != null && mIndex == mChunk.items.size()) {
+            Chunk chunk = take();
+            if (chunk.first || chunk == END_OF_SECTION) {
+                // the section is over, keep the chunk for nextSection()
+                mPending = chunk;
+                mChunk = null;
+            } else {
+                mChunk = chunk;
+                mIndex = 0;
+            }
+        }
+        if (mChunk == null) {
+            return null;
+        }
+        return mChunk.items.get(mIndex++);
+    }
+
+    private Chunk take() throws IOException {
+        Chunk chunk;
+        try {
+            chunk = mQueue.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for the feed");
+        }
+        if (chunk.error != null) {
+            mDone = true;
+            if (chunk.error instanceof IOException) {
+                throw (IOException) chunk.error;
+            } else if (chunk.error instanceof Error) {
+                throw (Error) chunk.error;
+            }
+            throw new IOException("Error reading the feed", chunk.error);
+        }
+        if (chunk.section == SECTION_END && chunk != END_OF_SECTION) {
+            mDone = true;
+            mNextToken = chunk.nextToken;
+        }
+        return chunk;
+    }
+
+    @Override
+    public String getNextToken() {
+        return mNextToken;
+    }
+
+    /**
+     * Stop the producer and close the wrapped reader. Closing it from this thread also
+     * unblocks a producer waiting on the network.
+     */
+    @Override
+    public void close() throws IOException {
+        mProducer.interrupt();
+        mQueue.clear();
+        try {
+            mSource.close();
+        } finally {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mProducer.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void produce() {
+        int phase = mTrace.enter(SyncTrace.PHASE_PARSE);
+        try {
+            int section;
+            while ((section = mSource.nextSection()) != SECTION_END) {
+                Chunk chunk = new Chunk(section, true);
+                Object item;
+                while ((item = section == SECTION_DELETED
+                        ? mSource.nextDeletedId() : mSource.nextEntry()) != null) {
+                    if (chunk.items.size() == mChunkSize) {
+                        put(chunk);
+                        chunk = new Chunk(section, false);
+                    }
+                    chunk.items.add(item);
+                }
+                put(chunk);
+                put(END_OF_SECTION);
+            }
+            Chunk end = new Chunk(SECTION_END, true);
+            end.nextToken = mSource.getNextToken();
+            put(end);
+        } catch (InterruptedException e) {
+            // closed by the consumer
+        } catch (Throwable e) {
+            // whatever ends the producer has to reach the consumer, or it waits forever
+            Chunk failed = new Chunk(SECTION_END, true);
+            failed.error = e;
+            try {
+                mQueue.put(failed);
+            } catch (InterruptedException closed) {
+                // nobody is waiting for it anymore
+            }
+        } finally {
+            mTrace.exit(phase);
+        }
+    }
+
+    private void put(Chunk chunk) throws InterruptedException {
+        // the wait for the consumer is not parse time
+        int phase = mTrace.enter(SyncTrace.PHASE_WAIT);
+        try {
+            mQueue.put(chunk);
+        } finally {
+            mTrace.exit(phase);
+        }
+    }
+
+    private static class Chunk {
+        final int section;
+        final boolean first;
+        final ArrayList<Object> items = new ArrayList<Object>();
+        String nextToken = null;
+        Throwable error = null;
+
+        Chunk(int section, boolean first) {
+            this.section = section;
+            this.first = first;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.foellerich.mymapmarkers.sync;
+
+/**
+ * Picks the interval of the periodic sync from how often the markers change.
+ *
+ * <p>The change rate is an exponentially weighted average over the syncs, each sync weighing
+ * in with the rows it changed over the time since the one before. The interval aims at
+ * {@value #CHANGES_PER_SYNC} changed row per sync: a busy dataset is synced more often, a
+ * quiet one less, both within {@link #MIN_INTERVAL_SECONDS} and {@link #MAX_INTERVAL_SECONDS}.
+ * A freshness hint of the server is a lower bound, syncing before it expires is wasted.
+ */
+public class SyncScheduler {
+    private SyncScheduler() {}
+
+    public static final long MIN_INTERVAL_SECONDS = 15 * 60; // 15 minutes
+    public static final long MAX_INTERVAL_SECONDS = 24 * 60 * 60; // 1 day
+
+    /** Weight of the latest sync in the change rate. */
+    private static final double WEIGHT = 0.3;
+
+    private static final double CHANGES_PER_SYNC = 1;
+
+    /**
+     * Relative change below which the periodic sync is not re-registered.
+     */
+    private static final double HYSTERESIS = 0.25;
+
+    /**
+     * @param rate change rate so far, in rows per second, or a negative value if there is none
+     * @param changes rows changed by the latest sync
+     * @param elapsedSeconds time since the sync before
+     * @return updated change rate, in rows per second
+     */
+    public static double updateRate(double rate, long changes, long elapsedSeconds) {
+        if (elapsedSeconds <= 0) {
+            return rate;
+        }
+        double sample = (double) changes / elapsedSeconds;
+        if (rate < 0) {
+            return sample;
+        }
+        return WEIGHT * sample + (1 - WEIGHT) * rate;
+    }
+
+    /**
+     * @param rate change rate, in rows per second, or a negative value if there is none
+     * @param currentSeconds interval used so far, kept if there is no rate yet
+     * @param maxAgeSeconds time the server declared its response fresh for, or -1
+     * @return interval of the periodic sync, in seconds
+     */
+    public static long getInterval(double rate, long currentSeconds, long maxAgeSeconds) {
+        long interval;
+        if (rate < 0) {
+            interval = currentSeconds;
+        } else if (rate * MAX_INTERVAL_SECONDS <= CHANGES_PER_SYNC) {
+            interval = MAX_INTERVAL_SECONDS;
+        } else {
+            interval = (long) (CHANGES_PER_SYNC / rate);
+        }
+        interval = Math.max(interval, maxAgeSeconds);
+        return Math.max(MIN_INTERVAL_SECONDS, Math.min(MAX_INTERVAL_SECONDS, interval));
+    }
+
+    /**
+     * @return whether the interval changed enough to re-register the periodic sync, which
+     *         restarts its timer
+     */
+    public static boolean shouldReschedule(long currentSeconds, long nextSeconds) {
+        return Math.abs(nextSeconds - currentSeconds) > currentSeconds * HYSTERESIS;
+    }
+}
@@ -0,0 +1,175 @@
+package com.foellerich.mymapmarkers.sync;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Wall time, bytes, entries and operations of the phases of one sync.
+ *
+ * <p>Phases nest: {@link #enter(int)} pauses the phase running so far and {@link #exit(int)}
+ * resumes it, so every phase is charged only the time spent in it and not in the phases
+ * called from it. A streaming sync interleaves all of them, e.g. the parser blocks on the
+ * network and the merge on the local cursor, which a single stopwatch per phase could not
+ * tell apart.
+ *
+ * <p>Not thread safe, a trace belongs to the thread running the sync.
+ */
+public class SyncTrace {
+
+    /** Opening the connection until the response headers arrived. */
+    public static final int PHASE_CONNECT = 0;
+    /**
+     * Blocked on the response body, or on reading it back from the spool file including its
+     * decompression.
+     */
+    public static final int PHASE_DOWNLOAD = 1;
+    /** Tokenizing the feed. */
+    public static final int PHASE_PARSE = 2;
+    /** Reading the local rows the feed is compared against. */
+    public static final int PHASE_QUERY = 3;
+    /** Comparing the feed with the local rows. */
+    public static final int PHASE_DIFF = 4;
+    /** Writing to the provider. */
+    public static final int PHASE_APPLY = 5;
+
+    /** Threads of a pipelined sync waiting on each other. */
+    public static final int PHASE_WAIT = 6;
+
+    public static final int NUM_PHASES = 7;
+
+    private static final int NO_PHASE = -1;
+
+    private final long mStartNanos = System.nanoTime();
+    private long mEndNanos = -1;
+
+    private final long[] mNanos = new long[NUM_PHASES];
+    private final long[] mBytes = new long[NUM_PHASES];
+    private final long[] mEntries = new long[NUM_PHASES];
+    private final long[] mOperations = new long[NUM_PHASES];
+
+    private int mPhase = NO_PHASE;
+    private long mPhaseStartNanos = 0;
+
+    /**
+     * Start charging time to a phase.
+     * @return the phase to hand back to {@link #exit(int)}
+     */
+    public int enter(int phase) {
+        int previous = mPhase;
+        charge(System.nanoTime());
+        mPhase = phase;
+        return previous;
+    }
+
+    /**
+     * Stop charging time to the current phase and resume the one it was entered from.
+     * @param previous return value of the matching {@link #enter(int)}
+     */
+    public void exit(int previous) {
+        charge(System.nanoTime());
+        mPhase = previous;
+    }
+
+    private void charge(long now) {
+        if (mPhase != NO_PHASE) {
+            mNanos[mPhase] += now - mPhaseStartNanos;
+        }
+        mPhaseStartNanos = now;
+    }
+
+    /**
+     * Stop the clock of the whole sync, leaving any phase still running.
+     */
+    public void finish() {
+        charge(System.nanoTime());
+        mPhase = NO_PHASE;
+        mEndNanos = mPhaseStartNanos;
+    }
+
+    public void addBytes(int phase, long bytes) {
+        mBytes[phase] += bytes;
+    }
+
+    public void addEntries(int phase, long entries) {
+        mEntries[phase] += entries;
+    }
+
+    public void addOperations(int phase, long operations) {
+        mOperations[phase] += operations;
+    }
+
+    /**
+     * Add the phases of a trace recorded on another thread of the same sync. The wall time
+     * of the whole sync stays the one of this trace.
+     */
+    public void add(SyncTrace other) {
+        for (int phase = 0; phase < NUM_PHASES; phase++) {
+            mNanos[phase] += other.mNanos[phase];
+            mBytes[phase] += other.mBytes[phase];
+            mEntries[phase] += other.mEntries[phase];
+            mOperations[phase] += other.mOperations[phase];
+        }
+    }
+
+    /**
+     * @return wall time of the whole sync, up to now if it did not finish yet
+     */
+    public long getTotalMillis() {
+        long end = mEndNanos >= 0 ? mEndNanos : System.nanoTime();
+        return (end - mStartNanos) / 1000000;
+    }
+
+    public long getMillis(int phase) {
+        return mNanos[phase] / 1000000;
+    }
+
+    public long getBytes(int phase) {
+        return mBytes[phase];
+    }
+
+    public long getEntries(int phase) {
+        return mEntries[phase];
+    }
+
+    public long getOperations(int phase) {
+        return mOperations[phase];
+    }
+
+    /**
+     * Charge the time spent reading from {@code in} to {@code phase}.
+     */
+    public InputStream wrap(InputStream in, final int phase) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int previous = enter(phase);
+                try {
+                    return super.read();
+                } finally {
+                    exit(previous);
+                }
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                int previous = enter(phase);
+                try {
+                    return super.read(buffer, offset, count);
+                } finally {
+                    exit(previous);
+                }
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                int previous = enter(phase);
+                try {
+                    return super.skip(n);
+                } finally {
+                    exit(previous);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,105 @@
+package com.foellerich.mymapmarkers.provider;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RowCacheTest {
+
+    private static final String[] COLUMNS = {
+            MarkerContract.Marker._ID,
+            MarkerContract.Marker.COLUMN_NAME_SOURCE,
+            MarkerContract.Marker.COLUMN_NAME_ENTRY_ID,
+            MarkerContract.Marker.COLUMN_NAME_NAME
+    };
+
+    @Test
+    public void servesStoredRows() {
+        RowCache cache = new RowCache(10);
+        Object[] row = row(1, "a", "name");
+        cache.put(cache.getGeneration(), COLUMNS, row);
+        assertArrayEquals(COLUMNS, cache.getColumns());
+        assertArrayEquals(row, cache.get(1));
+        assertArrayEquals(row, cache.get("default", "a"));
+        assertNull(cache.get(2));
+        assertNull(cache.get("other", "a"));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void rejectsRowReadBeforeWrite() {
+        RowCache cache = new RowCache(10);
+        long generation = cache.getGeneration();
+        // a write starts and finishes between the read and the put
+        long since = cache.beginWrite();
+        cache.invalidate(new long[]{1}, since);
+        cache.put(generation, COLUMNS, row(1, "a", "old"));
+        assertNull(cache.get(1));
+        assertNull(cache.get("default", "a"));
+    }
+
+    @Test
+    public void rejectsRowReadDuringWrite() {
+        RowCache cache = new RowCache(10);
+        long since = cache.beginWrite();
+        long generation = cache.getGeneration();
+        cache.put(generation, COLUMNS, row(1, "a", "maybe old"));
+        cache.invalidate(new long[0], since);
+        assertNull(cache.get(1));
+    }
+
+    @Test
+    public void acceptsRowReadAfterWrite() {
+        RowCache cache = new RowCache(10);
+        cache.invalidate(new long[]{1}, cache.beginWrite());
+        cache.put(cache.getGeneration(), COLUMNS, row(1, "a", "new"));
+        assertEquals("new", cache.get(1)[3]);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        RowCache cache = new RowCache(2);
+        cache.put(cache.getGeneration(), COLUMNS, row(1, "a", "a"));
+        cache.put(cache.getGeneration(), COLUMNS, row(2, "b", "b"));
+        // touch 1, so 2 is the least recently used
+        cache.get(1);
+        cache.put(cache.getGeneration(), COLUMNS, row(3, "c", "c"));
+        assertNull(cache.get(2));
+        assertNull(cache.get("default", "b"));
+        assertEquals("a", cache.get(1)[3]);
+        assertEquals("c", cache.get(3)[3]);
+        long[] ids = cache.getIds();
+        Arrays.sort(ids);
+        assertArrayEquals(new long[]{1, 3}, ids);
+    }
+
+    @Test
+    public void replacesRowOfSameId() {
+        RowCache cache = new RowCache(10);
+        cache.put(cache.getGeneration(), COLUMNS, row(1, "a", "first"));
+        cache.put(cache.getGeneration(), COLUMNS, row(1, "b", "second"));
+        assertEquals("second", cache.get(1)[3]);
+        assertNull(cache.get("default", "a"));
+        assertEquals(1, cache.getIds().length);
+    }
+
+    @Test
+    public void invalidatesWrittenRowsOnly() {
+        RowCache cache = new RowCache(10);
+        cache.put(cache.getGeneration(), COLUMNS, row(1, "a", "a"));
+        cache.put(cache.getGeneration(), COLUMNS, row(2, "b", "b"));
+        cache.invalidate(new long[]{2, 99}, cache.beginWrite());
+        assertEquals("a", cache.get(1)[3]);
+        assertNull(cache.get(2));
+        assertNull(cache.get("default", "b"));
+    }
+
+    private static Object[] row(long id, String entryId, String name) {
+        return new Object[]{id, "default", entryId, name};
+    }
+}
@@ -0,0 +1,52 @@
+package com.foellerich.mymapmarkers.provider;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SortKeysTest {
+
+    @Test
+    public void nullIsEmpty() {
+        assertEquals("", SortKeys.fold(null));
+        assertEquals("", SortKeys.fold(""));
+    }
+
+    @Test
+    public void dropsAccentsAndCase() {
+        assertEquals("emile s cafe", SortKeys.fold("\u00c9mile's Caf\u00e9"));
+        assertEquals("emile s cafe", SortKeys.fold("EMILE'S CAFE"));
+        // decomposed input folds like composed input
+        assertEquals("cafe", SortKeys.fold("Cafe\u0301"));
+        assertEquals("munchen", SortKeys.fold("M\u00fcnchen"));
+    }
+
+    @Test
+    public void keepsLettersWithoutDecomposition() {
+        assertEquals("stra\u00dfe 5 munchen", SortKeys.fold("Stra\u00dfe 5, M\u00fcnchen"));
+        assertEquals("\u00f8resund", SortKeys.fold("\u00d8resund"));
+        assertEquals("\u6771\u4eac", SortKeys.fold("\u6771\u4eac"));
+    }
+
+    @Test
+    public void collapsesSeparators() {
+        assertEquals("a b c", SortKeys.fold("  a, -- b!!!c  "));
+        assertEquals("10115 berlin", SortKeys.fold("10115\tBerlin\n"));
+        assertEquals("", SortKeys.fold(" ,.;- "));
+    }
+
+    @Test
+    public void sortsIgnoringAccentsCaseAndPunctuation() {
+        String[] names = {"zebra", "\u00c4pfel", "apfel", "'Apfel'", "Bern", "\u00e9cole", "Ecole"};
+        String[] keys = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            keys[i] = SortKeys.fold(names[i]);
+        }
+        Arrays.sort(keys);
+        assertArrayEquals(new String[]{"apfel", "apfel", "apfel", "bern", "ecole", "ecole",
+                "zebra"}, keys);
+    }
+}
@@ -0,0 +1,111 @@
+package com.foellerich.mymapmarkers.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+/**
+ * Encoder of the binary marker feed, the counterpart of the app's {@code BinaryFeedReader}
+ * whose doc comment describes the format. Sections are written by their begin method followed
+ * by as many items as the count given.
+ */
+public final class BinaryFeedWriter {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteArrayOutputStream mOut;
+    private final HashMap<String, Integer> mStrings = new HashMap<String, Integer>();
+    private String mPreviousId = "";
+
+    public BinaryFeedWriter(int expectedSize) {
+        mOut = new ByteArrayOutputStream(expectedSize);
+        mOut.write('M');
+        mOut.write('M');
+        mOut.write('F');
+        mOut.write('1');
+    }
+
+    public void beginMarkers(int count) {
+        mOut.write(1);
+        writeVarint(count);
+    }
+
+    public void beginChanged(int count) {
+        mOut.write(2);
+        writeVarint(count);
+    }
+
+    public void beginDeleted(int count) {
+        mOut.write(3);
+        writeVarint(count);
+    }
+
+    public void marker(String id, String name, String address, double lat, double lng) {
+        writeId(id);
+        writeString(name);
+        if (address == null) {
+            writeVarint(0);
+        } else {
+            String[] parts = address.split(", ", -1);
+            writeVarint(parts.length + 1);
+            for (String part : parts) {
+                Integer index = mStrings.get(part);
+                if (index != null) {
+                    writeVarint(index + 1);
+                } else {
+                    writeVarint(0);
+                    writeString(part);
+                    mStrings.put(part, mStrings.size());
+                }
+            }
+        }
+        writeFixedPoint(lat);
+        writeFixedPoint(lng);
+    }
+
+    public void deletedId(String id) {
+        writeId(id);
+    }
+
+    public byte[] finish(String nextToken) {
+        if (nextToken != null) {
+            mOut.write(4);
+            writeString(nextToken);
+        }
+        mOut.write(0);
+        return mOut.toByteArray();
+    }
+
+    private void writeId(String id) {
+        int shared = 0;
+        int max = Math.min(id.length(), mPreviousId.length());
+        while (shared < max && id.charAt(shared) == mPreviousId.charAt(shared)) {
+            shared++;
+        }
+        writeVarint(shared);
+        writeString(id.substring(shared));
+        mPreviousId = id;
+    }
+
+    private void writeFixedPoint(double degrees) {
+        long fixed = Math.round(degrees * 1e7);
+        writeVarint((fixed << 1) ^ (fixed >> 63));
+    }
+
+    private void writeString(String s) {
+        if (s == null) {
+            writeVarint(0);
+            return;
+        }
+        byte[] bytes = s.getBytes(UTF_8);
+        writeVarint(bytes.length + 1);
+        mOut.write(bytes, 0, bytes.length);
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            mOut.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        mOut.write((int) value);
+    }
+}
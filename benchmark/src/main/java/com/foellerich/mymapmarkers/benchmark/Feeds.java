@@ -0,0 +1,115 @@
+package com.foellerich.mymapmarkers.benchmark;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Synthetic marker feeds shaped like the ones the server sends.
+ */
+final class Feeds {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private Feeds() {}
+
+    /**
+     * Server ids are 24 hex digit object ids, handed out in ascending order. Local rows use
+     * the even ids, so a feed can insert new markers on the odd ones in between.
+     */
+    static String id(int i) {
+        String hex = Integer.toHexString(i);
+        StringBuilder id = new StringBuilder(24);
+        for (int pad = hex.length(); pad < 24; pad++) {
+            id.append('0');
+        }
+        return id.append(hex).toString();
+    }
+
+    static String name(int i) {
+        return "Marker " + i;
+    }
+
+    static String address(int i) {
+        return (i % 1000) + " Example Street, " + (10000 + i % 90000) + " Example City";
+    }
+
+    static double lat(int i) {
+        return (i * 0.000731) % 180 - 90;
+    }
+
+    static double lng(int i) {
+        return (i * 0.001373) % 360 - 180;
+    }
+
+    /**
+     * Build a snapshot feed of the local rows {@code 0..entries-1} with churn applied.
+     * @param churn fraction of rows that are changed, deleted or newly inserted, a third each
+     */
+    static byte[] snapshot(int entries, double churn, long seed) {
+        Random random = new Random(seed);
+        StringBuilder json = new StringBuilder(entries * 160);
+        json.append("{\"markers\":[");
+        boolean first = true;
+        for (int i = 0; i < entries; i++) {
+            double roll = random.nextDouble() * 3;
+            boolean churned = random.nextDouble() < churn;
+            if (churned && roll < 1) {
+                continue; // deleted on the server
+            }
+            first = appendMarker(json, first, 2 * i, churned && roll < 2 ? " (changed)" : "");
+            if (churned && roll >= 2) {
+                first = appendMarker(json, first, 2 * i + 1, "");
+            }
+        }
+        json.append("],\"next_token\":\"benchmark\"}");
+        return json.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * Build the same snapshot as {@link #snapshot(int, double, long)} in the binary format.
+     */
+    static byte[] binarySnapshot(int entries, double churn, long seed) {
+        // count first, the section is prefixed with its length
+        Random random = new Random(seed);
+        int count = 0;
+        for (int i = 0; i < entries; i++) {
+            double roll = random.nextDouble() * 3;
+            boolean churned = random.nextDouble() < churn;
+            if (!churned) {
+                count++;
+            } else if (roll >= 1) {
+                count += roll >= 2 ? 2 : 1;
+            }
+        }
+        random = new Random(seed);
+        BinaryFeedWriter feed = new BinaryFeedWriter(entries * 40);
+        feed.beginMarkers(count);
+        for (int i = 0; i < entries; i++) {
+            double roll = random.nextDouble() * 3;
+            boolean churned = random.nextDouble() < churn;
+            if (churned && roll < 1) {
+                continue; // deleted on the server
+            }
+            int local = 2 * i;
+            feed.marker(id(local), name(local) + (churned && roll < 2 ? " (changed)" : ""),
+                    address(local), lat(local), lng(local));
+            if (churned && roll >= 2) {
+                feed.marker(id(local + 1), name(local + 1), address(local + 1), lat(local + 1),
+                        lng(local + 1));
+            }
+        }
+        return feed.finish("benchmark");
+    }
+
+    private static boolean appendMarker(StringBuilder json, boolean first, int i, String suffix) {
+        if (!first) {
+            json.append(',');
+        }
+        json.append("{\"_id\":\"").append(id(i))
+                .append("\",\"name\":\"").append(name(i)).append(suffix)
+                .append("\",\"address\":\"").append(address(i))
+                .append("\",\"lat\":").append(lat(i))
+                .append(",\"lng\":").append(lng(i))
+                .append(",\"__v\":0}");
+        return false;
+    }
+}
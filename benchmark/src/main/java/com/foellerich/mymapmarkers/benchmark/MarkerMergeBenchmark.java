@@ -0,0 +1,165 @@
+package com.foellerich.mymapmarkers.benchmark;
+
+import com.foellerich.mymapmarkers.net.MarkerParser;
+import com.foellerich.mymapmarkers.sync.MarkerMerger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The diff of the sync: {@link MarkerMerger} over an in-memory copy of the local table, with
+ * the given fraction of rows changed, deleted or inserted on the server. {@code merge} takes
+ * already parsed entries, {@code parseAndMerge} streams the feed as the sync adapter does.
+ * Database writes are not part of the measurement.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class MarkerMergeBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int entries;
+
+    @Param({"0.0", "0.01", "0.1", "0.5"})
+    public double churn;
+
+    private byte[] mFeed;
+    private List<MarkerParser.Entry> mParsed;
+
+    @Setup(Level.Trial)
+    public void createFeed() throws IOException {
+        mFeed = Feeds.snapshot(entries, churn, 42);
+        mParsed = new MarkerParser(true).parse(new ByteArrayInputStream(mFeed));
+    }
+
+    @Setup(Level.Iteration)
+    public void resetHeap() {
+        Heap.resetPeak();
+    }
+
+    @TearDown(Level.Iteration)
+    public void reportHeap() {
+        Heap.printPeak("merge " + entries + "/" + churn);
+    }
+
+    @Benchmark
+    public void merge(Blackhole blackhole) throws IOException {
+        MarkerMerger merger = new MarkerMerger(new LocalRows(entries),
+                new CountingOperations(blackhole));
+        for (MarkerParser.Entry entry : mParsed) {
+            merger.merge(entry);
+        }
+        merger.finish();
+        blackhole.consume(merger.getNumUpdates());
+    }
+
+    @Benchmark
+    public void parseAndMerge(Blackhole blackhole) throws IOException {
+        MarkerMerger merger = new MarkerMerger(new LocalRows(entries),
+                new CountingOperations(blackhole));
+        MarkerParser.FeedReader reader =
+                new MarkerParser(true).open(new ByteArrayInputStream(mFeed));
+        try {
+            while (reader.nextSection() != MarkerParser.FeedReader.SECTION_END) {
+                MarkerParser.Entry entry;
+                while ((entry = reader.nextEntry()) != null) {
+                    merger.merge(entry);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        merger.finish();
+        blackhole.consume(merger.getNumUpdates());
+    }
+
+    /**
+     * Local table holding the even ids, computed on the fly like rows read from a cursor.
+     */
+    private static class LocalRows implements MarkerMerger.LocalMarkers {
+        private final int mCount;
+        private int mPosition = -1;
+
+        LocalRows(int count) {
+            mCount = count;
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return ++mPosition < mCount;
+        }
+
+        @Override
+        public long getId() {
+            return mPosition + 1;
+        }
+
+        @Override
+        public String getEntryId() {
+            return Feeds.id(2 * mPosition);
+        }
+
+        @Override
+        public String getName() {
+            return Feeds.name(2 * mPosition);
+        }
+
+        @Override
+        public String getAddress() {
+            return Feeds.address(2 * mPosition);
+        }
+
+        @Override
+        public double getLat() {
+            return Feeds.lat(2 * mPosition);
+        }
+
+        @Override
+        public double getLng() {
+            return Feeds.lng(2 * mPosition);
+        }
+    }
+
+    private static class CountingOperations implements MarkerMerger.Operations {
+        private final Blackhole mBlackhole;
+
+        CountingOperations(Blackhole blackhole) {
+            mBlackhole = blackhole;
+        }
+
+        @Override
+        public void insert(MarkerParser.Entry entry) {
+            mBlackhole.consume(entry);
+        }
+
+        @Override
+        public void update(long id, MarkerParser.Entry entry) {
+            mBlackhole.consume(id);
+        }
+
+        @Override
+        public void delete(long id) {
+            mBlackhole.consume(id);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.foellerich.mymapmarkers.benchmark;
+
+import com.foellerich.mymapmarkers.net.MarkerParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to parse a whole snapshot feed with {@link MarkerParser}. One operation is one feed,
+ * so divide by {@code entries} for the per-entry cost; run with {@code -prof gc} for the
+ * allocation rate ({@code gc.alloc.rate.norm} is bytes per feed). {@code format} switches
+ * between the {@code JsonReader} based reader, the byte-level JSON one and the binary feed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class MarkerParserBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int entries;
+
+    @Param({"json", "bytes", "binary"})
+    public String format;
+
+    private byte[] mFeed;
+
+    @Setup(Level.Trial)
+    public void createFeed() {
+        if (format.equals("binary")) {
+            mFeed = Feeds.binarySnapshot(entries, 0, 42);
+        } else {
+            mFeed = Feeds.snapshot(entries, 0, 42);
+        }
+        System.out.println("feed " + entries + " " + format + ": " + mFeed.length + " bytes");
+    }
+
+    @Setup(Level.Iteration)
+    public void resetHeap() {
+        Heap.resetPeak();
+    }
+
+    @TearDown(Level.Iteration)
+    public void reportHeap() {
+        Heap.printPeak("parse " + entries + " " + format);
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) throws IOException {
+        MarkerParser.FeedReader reader = new MarkerParser(format.equals("bytes")).open(
+                new ByteArrayInputStream(mFeed), format.equals("binary")
+                        ? MarkerParser.CONTENT_TYPE_BINARY : MarkerParser.CONTENT_TYPE_JSON);
+        try {
+            while (reader.nextSection() != MarkerParser.FeedReader.SECTION_END) {
+                MarkerParser.Entry entry;
+                while ((entry = reader.nextEntry()) != null) {
+                    blackhole.consume(entry);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.foellerich.mymapmarkers.net;
+
+import com.foellerich.mymapmarkers.benchmark.BinaryFeedWriter;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BinaryFeedReaderTest {
+
+    @Test
+    public void roundTripsSnapshot() throws IOException {
+        BinaryFeedWriter writer = new BinaryFeedWriter(256);
+        writer.beginMarkers(4);
+        writer.marker("m001", "Caf\u00e9", "Main St 1, 10115 Berlin, Germany", 52.52, 13.405);
+        writer.marker("m002", null, "Side St 2, 10115 Berlin, Germany", -33.8688, -151.2093);
+        writer.marker("m010", "", null, 0, -0.0000001);
+        writer.marker("x", "empty parts", ", ", 90, 180);
+        MarkerParser.FeedReader reader = open(writer.finish("token"));
+
+        assertEquals(MarkerParser.FeedReader.SECTION_MARKERS, reader.nextSection());
+        assertEntry(reader.nextEntry(), "m001", "Caf\u00e9", "Main St 1, 10115 Berlin, Germany",
+                52.52, 13.405);
+        assertEntry(reader.nextEntry(), "m002", null, "Side St 2, 10115 Berlin, Germany",
+                -33.8688, -151.2093);
+        assertEntry(reader.nextEntry(), "m010", "", null, 0, -0.0000001);
+        assertEntry(reader.nextEntry(), "x", "empty parts", ", ", 90, 180);
+        assertNull(reader.nextEntry());
+        assertEquals(MarkerParser.FeedReader.SECTION_END, reader.nextSection());
+        assertEquals("token", reader.getNextToken());
+    }
+
+    @Test
+    public void roundTripsDelta() throws IOException {
+        BinaryFeedWriter writer = new BinaryFeedWriter(64);
+        writer.beginChanged(1);
+        writer.marker("m002", "changed", "a, b", 1, 2);
+        writer.beginDeleted(2);
+        writer.deletedId("m003");
+        writer.deletedId("m0031");
+        MarkerParser.FeedReader reader = open(writer.finish(null));
+
+        assertEquals(MarkerParser.FeedReader.SECTION_CHANGED, reader.nextSection());
+        assertEntry(reader.nextEntry(), "m002", "changed", "a, b", 1, 2);
+        assertEquals(MarkerParser.FeedReader.SECTION_DELETED, reader.nextSection());
+        assertEquals("m003", reader.nextDeletedId());
+        assertEquals("m0031", reader.nextDeletedId());
+        assertNull(reader.nextDeletedId());
+        assertEquals(MarkerParser.FeedReader.SECTION_END, reader.nextSection());
+        assertNull(reader.getNextToken());
+    }
+
+    @Test
+    public void skipsUnreadItems() throws IOException {
+        BinaryFeedWriter writer = new BinaryFeedWriter(64);
+        writer.beginMarkers(2);
+        writer.marker("a", "a", "shared", 1, 1);
+        writer.marker("b", "b", "shared", 2, 2);
+        writer.beginDeleted(1);
+        writer.deletedId("c");
+        MarkerParser.FeedReader reader = open(writer.finish(null));
+
+        assertEquals(MarkerParser.FeedReader.SECTION_MARKERS, reader.nextSection());
+        assertEquals(MarkerParser.FeedReader.SECTION_DELETED, reader.nextSection());
+        assertEquals("c", reader.nextDeletedId());
+    }
+
+    @Test
+    public void quantizesCoordinatesToSevenDecimals() throws IOException {
+        double[] coordinates = {52.520008123456789, -13.40495449999, 0.00000006, -179.99999996,
+                1e-9, 12.3456789012345};
+        BinaryFeedWriter writer = new BinaryFeedWriter(64);
+        writer.beginMarkers(coordinates.length);
+        for (int i = 0; i < coordinates.length; i++) {
+            writer.marker(Integer.toString(i), null, null, coordinates[i], coordinates[i]);
+        }
+        MarkerParser.FeedReader reader = open(writer.finish(null));
+        reader.nextSection();
+        for (double coordinate : coordinates) {
+            MarkerParser.Entry entry = reader.nextEntry();
+            assertTrue(Math.abs(entry.lat - coordinate) <= 0.5e-7);
+            // the same double as the decimal form with seven decimals
+            assertEquals(Double.parseDouble(new BigDecimal(coordinate)
+                    .setScale(7, RoundingMode.HALF_EVEN).toPlainString()), entry.lat, 0);
+        }
+    }
+
+    @Test
+    public void matchesJsonFeedAtSevenDecimals() throws IOException {
+        String json = "{\"markers\":[{\"_id\":\"a\",\"name\":\"n\",\"address\":\"x, y\","
+                + "\"lat\":48.137154,\"lng\":11.576124},{\"_id\":\"b\",\"name\":\"n\","
+                + "\"address\":\"x, z\",\"lat\":-22.951916,\"lng\":-43.2104872}]}";
+        List<MarkerParser.Entry> fromJson = new MarkerParser(true).parse(
+                new ByteArrayInputStream(json.getBytes(Charset.forName("UTF-8"))));
+        BinaryFeedWriter writer = new BinaryFeedWriter(64);
+        writer.beginMarkers(fromJson.size());
+        for (MarkerParser.Entry e : fromJson) {
+            writer.marker(e.id, e.name, e.address, e.lat, e.lng);
+        }
+        MarkerParser.FeedReader reader = open(writer.finish(null));
+        reader.nextSection();
+        for (MarkerParser.Entry e : fromJson) {
+            assertEntry(reader.nextEntry(), e.id, e.name, e.address, e.lat, e.lng);
+        }
+    }
+
+    @Test
+    public void rejectsOversizedStringTable() throws IOException {
+        BinaryFeedWriter writer = new BinaryFeedWriter(64);
+        writer.beginMarkers(3);
+        writer.marker("a", null, "0123456789", 0, 0);
+        writer.marker("b", null, "0123456789", 0, 0);
+        writer.marker("c", null, "abcdefghij", 0, 0);
+        byte[] feed = writer.finish(null);
+
+        // one part fits, the second is one byte too many
+        long limit = 2 * (2 * 10 + 40) - 1;
+        MarkerParser.FeedReader reader =
+                new BinaryFeedReader(new ByteArrayInputStream(feed), limit);
+        reader.nextSection();
+        reader.nextEntry();
+        reader.nextEntry();
+        try {
+            reader.nextEntry();
+            fail("string table not capped");
+        } catch (MarkerParser.FeedTooLargeException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("String table larger than"));
+        }
+
+        reader = new BinaryFeedReader(new ByteArrayInputStream(feed), limit + 1);
+        reader.nextSection();
+        reader.nextEntry();
+        reader.nextEntry();
+        assertEquals("abcdefghij", reader.nextEntry().address);
+    }
+
+    @Test
+    public void defaultCapHoldsLargeFeeds() {
+        // 100000 markers with a distinct street of 30 characters each
+        assertTrue(100000L * (2 * 30 + 40) < BinaryFeedReader.MAX_STRING_TABLE_BYTES);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownMagic() throws IOException {
+        open("MMF2\0".getBytes(Charset.forName("UTF-8"))).nextSection();
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedFeed() throws IOException {
+        BinaryFeedWriter writer = new BinaryFeedWriter(64);
+        writer.beginMarkers(1);
+        writer.marker("a", "name", "address", 1, 2);
+        byte[] feed = writer.finish(null);
+        MarkerParser.FeedReader reader = open(Arrays.copyOf(feed, feed.length - 4));
+        reader.nextSection();
+        reader.nextEntry();
+    }
+
+    private static MarkerParser.FeedReader open(byte[] feed) throws IOException {
+        return new MarkerParser().open(new ByteArrayInputStream(feed),
+                MarkerParser.CONTENT_TYPE_BINARY);
+    }
+
+    private static void assertEntry(MarkerParser.Entry entry, String id, String name,
+                                    String address, double lat, double lng) {
+        assertEquals(id, entry.id);
+        assertEquals(name, entry.name);
+        assertEquals(address, entry.address);
+        assertEquals(lat, entry.lat, 0);
+        assertEquals(lng, entry.lng, 0);
+    }
+}
@@ -0,0 +1,156 @@
+package com.foellerich.mymapmarkers.net;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link ByteFeedReader} has to hand out exactly what the {@link android.util.JsonReader}
+ * based reader does: every fixture is read in both modes of {@link MarkerParser} and the
+ * results compared field by field, coordinates bit for bit.
+ */
+public class ByteFeedReaderTest {
+
+    @Test
+    public void escapes() throws IOException {
+        assertParity("{\"markers\":[{\"_id\":\"a\\\"b\",\"name\":\"tab\\there\\nnew line\","
+                + "\"address\":\"back\\\\slash \\/ \\b\\f\\r \\u0041\\u00e9\\u20ac "
+                + "\\ud83d\\ude00\",\"lat\":1,\"lng\":2}]}");
+    }
+
+    @Test
+    public void nonAsciiNames() throws IOException {
+        assertParity("{\"markers\":[{\"_id\":\"1\","
+                + "\"name\":\"Caf\u00e9 Z\u00fcrich \u2013 Stra\u00dfe\","
+                + "\"address\":\"\u6771\u4eac\u90fd \ud83d\ude00 "
+                + "\u0395\u03bb\u03bb\u03ac\u03b4\u03b1\",\"lat\":35.6,\"lng\":139.7}]}");
+    }
+
+    @Test
+    public void exponentsAndNegativeCoordinates() throws IOException {
+        assertParity("{\"markers\":["
+                + "{\"_id\":\"1\",\"lat\":-33.8688,\"lng\":-151.2093},"
+                + "{\"_id\":\"2\",\"lat\":5.2E1,\"lng\":1.34e+1},"
+                + "{\"_id\":\"3\",\"lat\":-1.5e-3,\"lng\":4E-7},"
+                + "{\"_id\":\"4\",\"lat\":-0.0,\"lng\":0},"
+                + "{\"_id\":\"5\",\"lat\":-90,\"lng\":180.0}]}");
+    }
+
+    @Test
+    public void longSignificands() throws IOException {
+        assertParity("{\"markers\":["
+                + "{\"_id\":\"1\",\"lat\":52.520008123456789012,\"lng\":13.404954000000000001},"
+                + "{\"_id\":\"2\",\"lat\":-0.1234567890123456789,\"lng\":179.99999999999999999},"
+                + "{\"_id\":\"3\",\"lat\":12345678901234567890e-18,\"lng\":9007199254740993},"
+                + "{\"_id\":\"4\",\"lat\":2.2250738585072014e-308,\"lng\":1.7976931348623157e308}"
+                + "]}");
+    }
+
+    @Test
+    public void unknownKeysAndNestedObjects() throws IOException {
+        assertParity("{\"version\":2,\"meta\":{\"markers\":[{\"_id\":\"x\"}],\"a\":[1,[2,{}]]},"
+                + "\"markers\":[{\"_id\":\"1\",\"tags\":[\"a\",{\"name\":\"nested\"}],"
+                + "\"name\":\"outer\",\"extra\":{\"lat\":99,\"deep\":{\"lng\":-99}},"
+                + "\"flag\":true,\"none\":null,\"n\":-1.5e3,\"lat\":1.5,\"lng\":2.5}],"
+                + "\"next_token\":\"t1\",\"trailer\":{\"x\":[null,false]}}");
+    }
+
+    @Test
+    public void deltaSections() throws IOException {
+        assertParity("{\"changed\":[{\"_id\":\"2\",\"name\":\"changed\",\"lat\":1,\"lng\":2}],"
+                + "\"deleted\":[\"3\",\"4\\u0035\"],\"next_token\":\"t2\"}");
+    }
+
+    @Test
+    public void missingFields() throws IOException {
+        assertParity("{\"markers\":[{},{\"_id\":\"1\"},{\"name\":\"\",\"address\":\"\"}],"
+                + "\"next_token\":null}");
+    }
+
+    @Test
+    public void randomFeeds() throws IOException {
+        Random random = new Random(42);
+        for (int i = 0; i < 50; i++) {
+            StringBuilder feed = new StringBuilder("{\"markers\":[");
+            for (int j = 0; j < 100; j++) {
+                feed.append(j == 0 ? "" : ",").append("{\"_id\":\"").append(i).append('-')
+                        .append(j).append("\",\"name\":\"").append(randomString(random))
+                        .append("\",\"lat\":").append(randomDouble(random))
+                        .append(",\"lng\":").append(randomDouble(random)).append('}');
+            }
+            assertParity(feed.append("]}").toString());
+        }
+    }
+
+    private static String randomString(Random random) {
+        StringBuilder s = new StringBuilder();
+        int length = random.nextInt(20);
+        for (int i = 0; i < length; i++) {
+            int c = random.nextInt(0x3000);
+            if (c < 0x20 || c == '"' || c == '\\' || (c >= 0xd800 && c < 0xe000)) {
+                s.append(String.format("\\u%04x", c));
+            } else {
+                s.append((char) c);
+            }
+        }
+        return s.toString();
+    }
+
+    private static String randomDouble(Random random) {
+        double value = (random.nextDouble() - 0.5) * 360;
+        switch (random.nextInt(3)) {
+            case 0:
+                return Double.toString(value);
+            case 1:
+                return String.format(Locale.US, "%.20f", value);
+            default:
+                return String.format(Locale.US, "%.17e", value);
+        }
+    }
+
+    private static void assertParity(String feed) throws IOException {
+        List<String> expected = read(new MarkerParser(false), feed);
+        List<String> actual = read(new MarkerParser(true), feed);
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * @return everything the reader hands out, one line per section, entry and deleted id
+     */
+    private static List<String> read(MarkerParser parser, String feed) throws IOException {
+        MarkerParser.FeedReader reader = parser.open(
+                new ByteArrayInputStream(feed.getBytes(Charset.forName("UTF-8"))));
+        List<String> result = new ArrayList<String>();
+        try {
+            int section;
+            while ((section = reader.nextSection()) != MarkerParser.FeedReader.SECTION_END) {
+                result.add("section " + section);
+                if (section == MarkerParser.FeedReader.SECTION_DELETED) {
+                    String id;
+                    while ((id = reader.nextDeletedId()) != null) {
+                        result.add("deleted " + id);
+                    }
+                } else {
+                    MarkerParser.Entry e;
+                    while ((e = reader.nextEntry()) != null) {
+                        result.add(e.id + "|" + e.name + "|" + e.address + "|"
+                                + Long.toHexString(Double.doubleToRawLongBits(e.lat)) + "|"
+                                + Long.toHexString(Double.doubleToRawLongBits(e.lng)));
+                    }
+                }
+            }
+            result.add("next_token " + reader.getNextToken());
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+}
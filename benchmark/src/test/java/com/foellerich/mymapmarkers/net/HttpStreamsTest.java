@@ -0,0 +1,234 @@
+package com.foellerich.mymapmarkers.net;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The download path of the sync adapter against a local server: Accept-Encoding set by hand,
+ * the body counted on the wire, decoded by {@link HttpStreams} and counted again.
+ */
+public class HttpStreamsTest {
+
+    private static final byte[] FEED = feed(200);
+
+    private HttpServer mServer;
+
+    @Before
+    public void startServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String encoding = exchange.getRequestURI().getPath().substring(1);
+                byte[] body = encode(FEED, encoding);
+                if (!encoding.equals("none")) {
+                    exchange.getResponseHeaders().set("Content-Encoding", encoding);
+                }
+                exchange.getResponseHeaders().set("X-Accept-Encoding",
+                        exchange.getRequestHeaders().getFirst(HttpStreams.HEADER_ACCEPT_ENCODING));
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        mServer.start();
+    }
+
+    @After
+    public void stopServer() {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void decodesGzip() throws IOException {
+        Download download = download("gzip");
+        assertArrayEquals(FEED, download.body);
+        assertEquals(encode(FEED, "gzip").length, download.wireBytes);
+        assertEquals(FEED.length, download.decodedBytes);
+        assertTrue(download.wireBytes < download.decodedBytes);
+    }
+
+    @Test
+    public void decodesDeflate() throws IOException {
+        Download download = download("deflate");
+        assertArrayEquals(FEED, download.body);
+        assertEquals(encode(FEED, "deflate").length, download.wireBytes);
+        assertEquals(FEED.length, download.decodedBytes);
+        assertTrue(download.wireBytes < download.decodedBytes);
+    }
+
+    @Test
+    public void passesIdentityThrough() throws IOException {
+        for (String encoding : new String[]{"identity", "none"}) {
+            Download download = download(encoding);
+            assertArrayEquals(FEED, download.body);
+            assertEquals(FEED.length, download.wireBytes);
+            assertEquals(FEED.length, download.decodedBytes);
+        }
+    }
+
+    @Test
+    public void decodedFeedParses() throws IOException {
+        List<MarkerParser.Entry> entries = new MarkerParser(true).parse(
+                new ByteArrayInputStream(download("gzip").body));
+        assertEquals(200, entries.size());
+        assertEquals("m0199", entries.get(199).id);
+    }
+
+    @Test
+    public void sendsAcceptEncoding() throws IOException {
+        HttpURLConnection conn = open("gzip");
+        try {
+            assertEquals(HttpStreams.ACCEPT_ENCODING, conn.getHeaderField("X-Accept-Encoding"));
+            assertEquals("gzip", conn.getContentEncoding());
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    @Test
+    public void rejectsUnknownEncoding() throws IOException {
+        HttpURLConnection conn = open("br");
+        try {
+            HttpStreams.decode(conn.getInputStream(), conn.getContentEncoding());
+            fail("br decoded");
+        } catch (IOException e) {
+            assertEquals("Unsupported Content-Encoding: br", e.getMessage());
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    @Test
+    public void encodingIsCaseAndSpaceInsensitive() throws IOException {
+        InputStream in = HttpStreams.decode(
+                new ByteArrayInputStream(encode(FEED, "gzip")), " GZip ");
+        assertArrayEquals(FEED, readAll(in));
+        in = HttpStreams.decode(new ByteArrayInputStream(FEED), "");
+        assertArrayEquals(FEED, readAll(in));
+    }
+
+    @Test
+    public void parsesMaxAge() {
+        assertEquals(-1, HttpStreams.parseMaxAge(null));
+        assertEquals(-1, HttpStreams.parseMaxAge(""));
+        assertEquals(-1, HttpStreams.parseMaxAge("public, must-revalidate"));
+        assertEquals(3600, HttpStreams.parseMaxAge("max-age=3600"));
+        assertEquals(3600, HttpStreams.parseMaxAge("public, Max-Age=\"3600\", s-maxage=60"));
+        assertEquals(0, HttpStreams.parseMaxAge("max-age=0"));
+        assertEquals(0, HttpStreams.parseMaxAge("max-age=3600, no-cache"));
+        assertEquals(0, HttpStreams.parseMaxAge("NO-STORE"));
+    }
+
+    @Test
+    public void ignoresMalformedMaxAge() {
+        assertEquals(-1, HttpStreams.parseMaxAge("max-age="));
+        assertEquals(-1, HttpStreams.parseMaxAge("max-age=abc"));
+        assertEquals(-1, HttpStreams.parseMaxAge("max-age=1.5"));
+        assertEquals(-1, HttpStreams.parseMaxAge("max-age=1e3"));
+        assertEquals(-1, HttpStreams.parseMaxAge("max-age=99999999999999999999"));
+        assertEquals(60, HttpStreams.parseMaxAge("max-age=60, max-age=x"));
+    }
+
+    @Test
+    public void ignoresNegativeMaxAge() {
+        assertEquals(-1, HttpStreams.parseMaxAge("max-age=-1"));
+        assertEquals(-1, HttpStreams.parseMaxAge("max-age=-3600"));
+        assertEquals(60, HttpStreams.parseMaxAge("max-age=60, max-age=-5"));
+    }
+
+    private HttpURLConnection open(String encoding) throws IOException {
+        URL url = new URL("http", "127.0.0.1", mServer.getAddress().getPort(), "/" + encoding);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestProperty(HttpStreams.HEADER_ACCEPT_ENCODING, HttpStreams.ACCEPT_ENCODING);
+        conn.connect();
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        return conn;
+    }
+
+    private Download download(String encoding) throws IOException {
+        HttpURLConnection conn = open(encoding);
+        try {
+            CountingInputStream wire = new CountingInputStream(conn.getInputStream());
+            CountingInputStream decoded = new CountingInputStream(
+                    HttpStreams.decode(wire, conn.getContentEncoding()));
+            byte[] body = readAll(decoded);
+            decoded.close();
+            return new Download(body, wire.getCount(), decoded.getCount());
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] encode(byte[] body, String encoding) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out;
+        if (encoding.equals("gzip")) {
+            out = new GZIPOutputStream(bytes);
+        } else if (encoding.equals("deflate")) {
+            out = new DeflaterOutputStream(bytes);
+        } else {
+            out = bytes;
+        }
+        out.write(body);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] feed(int entries) {
+        StringBuilder feed = new StringBuilder("{\"markers\":[");
+        for (int i = 0; i < entries; i++) {
+            feed.append(i == 0 ? "" : ",").append(String.format(
+                    "{\"_id\":\"m%04d\",\"name\":\"Marker %d\",\"address\":\"Street %d\","
+                            + "\"lat\":52.5%d,\"lng\":13.4%d}", i, i, i, i, i));
+        }
+        return feed.append("],\"next_token\":null}").toString()
+                .getBytes(Charset.forName("UTF-8"));
+    }
+
+    private static class Download {
+        final byte[] body;
+        final long wireBytes;
+        final long decodedBytes;
+
+        Download(byte[] body, long wireBytes, long decodedBytes) {
+            this.body = body;
+            this.wireBytes = wireBytes;
+            this.decodedBytes = decodedBytes;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.foellerich.mymapmarkers.net;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TeeInputStreamTest {
+
+    @Test
+    public void copiesReadAndSkippedBytes() throws IOException {
+        byte[] body = body(20000);
+        ByteArrayOutputStream spool = new ByteArrayOutputStream();
+        TeeInputStream in = new TeeInputStream(new ByteArrayInputStream(body), spool);
+        assertEquals(body[0], (byte) in.read());
+        assertEquals(100, in.skip(100));
+        byte[] buffer = new byte[body.length];
+        int n;
+        int total = 101;
+        while ((n = in.read(buffer)) != -1) {
+            total += n;
+        }
+        in.close();
+        assertEquals(body.length, total);
+        assertArrayEquals(body, spool.toByteArray());
+        assertFalse(in.hasReadFailed());
+    }
+
+    @Test
+    public void spoolsCompressedBodyOnTheWire() throws IOException {
+        byte[] body = body(50000);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write(body);
+        gzip.close();
+        ByteArrayOutputStream spool = new ByteArrayOutputStream();
+        InputStream decoded = new GZIPInputStream(new TeeInputStream(
+                new ByteArrayInputStream(compressed.toByteArray()), spool));
+        byte[] buffer = new byte[4096];
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int n;
+        while ((n = decoded.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        decoded.close();
+        assertArrayEquals(body, out.toByteArray());
+        assertArrayEquals(compressed.toByteArray(), spool.toByteArray());
+    }
+
+    @Test
+    public void keepsPrefixAndRemembersFailedRead() throws IOException {
+        byte[] body = body(1000);
+        ByteArrayOutputStream spool = new ByteArrayOutputStream();
+        TeeInputStream in = new TeeInputStream(new DroppingStream(body, 600), spool);
+        byte[] buffer = new byte[256];
+        try {
+            while (in.read(buffer) != -1) {
+                // drain
+            }
+            fail("connection did not drop");
+        } catch (IOException e) {
+            assertTrue(in.hasReadFailed());
+        }
+        in.close();
+        assertArrayEquals(Arrays.copyOf(body, 600), spool.toByteArray());
+    }
+
+    @Test
+    public void ignoresFailureCausedByClose() throws IOException {
+        DroppingStream source = new DroppingStream(body(100), 100);
+        TeeInputStream in = new TeeInputStream(source, new ByteArrayOutputStream());
+        in.close();
+        try {
+            in.read();
+            fail("read after close");
+        } catch (IOException e) {
+            assertFalse(in.hasReadFailed());
+        }
+    }
+
+    private static byte[] body(int length) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) (i * 31 % 251);
+        }
+        return body;
+    }
+
+    /**
+     * Connection that drops after {@code limit} bytes, or once it is closed.
+     */
+    private static class DroppingStream extends InputStream {
+        private final byte[] mBody;
+        private final int mLimit;
+        private int mPosition = 0;
+        private boolean mClosed = false;
+
+        DroppingStream(byte[] body, int limit) {
+            mBody = body;
+            mLimit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mClosed || mPosition == mLimit) {
+                throw new IOException("Connection reset");
+            }
+            int n = Math.min(length, mLimit - mPosition);
+            System.arraycopy(mBody, mPosition, buffer, offset, n);
+            mPosition += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.foellerich.mymapmarkers.sync;
+
+import com.foellerich.mymapmarkers.net.MarkerParser;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MarkerMergerTest {
+
+    @Test
+    public void insertsNewEntries() throws IOException {
+        Recorder ops = merge(rows(row(1, "a")), entry("a"), entry("b"));
+        assertEquals(Arrays.asList("insert b"), ops.log);
+    }
+
+    @Test
+    public void updatesChangedEntriesOnly() throws IOException {
+        Recorder ops = merge(rows(row(1, "a"), row(2, "b")), entry("a"), entry("b", "moved", 1));
+        assertEquals(Arrays.asList("update 2 b moved"), ops.log);
+    }
+
+    @Test
+    public void deletesMissingRows() throws IOException {
+        Recorder ops = merge(rows(row(1, "a"), row(2, "b"), row(3, "c")), entry("b"));
+        assertEquals(Arrays.asList("delete 1", "delete 3"), ops.log);
+    }
+
+    @Test
+    public void deletesRowsWithoutMarkerId() throws IOException {
+        Recorder ops = merge(rows(row(1, null), row(2, "a")), entry("a"));
+        assertEquals(Arrays.asList("delete 1"), ops.log);
+    }
+
+    @Test
+    public void insertsDuplicateLastWins() throws IOException {
+        Recorder ops = merge(rows(row(1, "a")), entry("a"), entry("a", "second", 1),
+                entry("b"), entry("a", "third", 1));
+        assertEquals(Arrays.asList("insert b", "insert a third"), ops.log);
+    }
+
+    @Test
+    public void insertsOutOfOrderEntriesAfterDeletes() throws IOException {
+        Recorder ops = merge(rows(row(1, "a"), row(2, "b"), row(3, "c"), row(4, "d")),
+                entry("c"), entry("a"), entry("e"), entry("b"));
+        // the walk deletes a and b before it sees them, the late inserts restore them
+        assertEquals(Arrays.asList("delete 1", "delete 2", "delete 4", "insert e",
+                "insert a", "insert b"), ops.log);
+    }
+
+    @Test
+    public void mergesReversedFeed() throws IOException {
+        Recorder ops = merge(rows(row(1, "a"), row(2, "b")), entry("c"), entry("b"), entry("a"));
+        assertEquals(Arrays.asList("delete 1", "delete 2", "insert c", "insert b", "insert a"),
+                ops.log);
+    }
+
+    @Test
+    public void countsDecisions() throws IOException {
+        MarkerMerger merger = new MarkerMerger(rows(row(1, "a"), row(2, "b"), row(3, "c")),
+                new Recorder());
+        merger.merge(entry("a", "changed", 1));
+        merger.merge(entry("c"));
+        merger.merge(entry("d"));
+        merger.merge(entry("b"));
+        assertEquals(1, merger.getNumUnordered());
+        merger.finish();
+        assertEquals(3, merger.getNumEntries());
+        assertEquals(2, merger.getNumInserts());
+        assertEquals(1, merger.getNumUpdates());
+        assertEquals(1, merger.getNumDeletes());
+    }
+
+    @Test
+    public void comparesCoordinatesAtBinaryFeedResolution() throws IOException {
+        // stored from a JSON feed, then the same marker arrives rounded by a binary feed
+        Recorder ops = merge(rows(row(1, "a", 52.520008123456789), row(2, "b", 52.52)),
+                entry("a", "name a", 52.5200081), entry("b", "name b", 52.5200001));
+        assertEquals(Arrays.asList("update 2 b name b"), ops.log);
+    }
+
+    @Test
+    public void roundsCoordinatesLikeTheBinaryFeed() {
+        assertTrue(MarkerMerger.isSameCoordinate(13.40495449, 13.4049545));
+        assertTrue(MarkerMerger.isSameCoordinate(-13.40495449, -13.4049545));
+        assertTrue(MarkerMerger.isSameCoordinate(0.00000004, 0));
+        assertFalse(MarkerMerger.isSameCoordinate(13.4049545, 13.4049546));
+        assertFalse(MarkerMerger.isSameCoordinate(0.00000006, 0));
+        assertFalse(MarkerMerger.isSameCoordinate(-90, 90));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsEntryWithoutId() throws IOException {
+        MarkerMerger merger = new MarkerMerger(rows(), new Recorder());
+        merger.merge(parse("{\"markers\":[{\"name\":\"x\",\"lat\":0,\"lng\":0}]}").get(0));
+    }
+
+    private static Recorder merge(LocalRows local, MarkerParser.Entry... entries)
+            throws IOException {
+        Recorder ops = new Recorder();
+        MarkerMerger merger = new MarkerMerger(local, ops);
+        for (MarkerParser.Entry entry : entries) {
+            merger.merge(entry);
+        }
+        merger.finish();
+        return ops;
+    }
+
+    private static MarkerParser.Entry entry(String id) throws IOException {
+        return entry(id, "name " + id, 0);
+    }
+
+    private static MarkerParser.Entry entry(String id, String name, double lat)
+            throws IOException {
+        return parse("{\"markers\":[{\"_id\":\"" + id + "\",\"name\":\"" + name
+                + "\",\"address\":\"\",\"lat\":" + lat + ",\"lng\":0}]}").get(0);
+    }
+
+    private static List<MarkerParser.Entry> parse(String feed) throws IOException {
+        return new MarkerParser(true).parse(
+                new ByteArrayInputStream(feed.getBytes(Charset.forName("UTF-8"))));
+    }
+
+    private static Object[] row(long id, String entryId) {
+        return row(id, entryId, 0);
+    }
+
+    private static Object[] row(long id, String entryId, double lat) {
+        return new Object[]{id, entryId, lat};
+    }
+
+    private static LocalRows rows(Object[]... rows) {
+        return new LocalRows(rows);
+    }
+
+    /**
+     * Local rows as the sync adapter pages them: ordered by marker id, nulls first.
+     */
+    private static class LocalRows implements MarkerMerger.LocalMarkers {
+        private final Object[][] mRows;
+        private int mPosition = -1;
+
+        LocalRows(Object[][] rows) {
+            mRows = rows;
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return ++mPosition < mRows.length;
+        }
+
+        @Override
+        public long getId() {
+            return (Long) mRows[mPosition][0];
+        }
+
+        @Override
+        public String getEntryId() {
+            return (String) mRows[mPosition][1];
+        }
+
+        @Override
+        public String getName() {
+            return "name " + getEntryId();
+        }
+
+        @Override
+        public String getAddress() {
+            return "";
+        }
+
+        @Override
+        public double getLat() {
+            return (Double) mRows[mPosition][2];
+        }
+
+        @Override
+        public double getLng() {
+            return 0;
+        }
+    }
+
+    private static class Recorder implements MarkerMerger.Operations {
+        final List<String> log = new ArrayList<String>();
+
+        @Override
+        public void insert(MarkerParser.Entry entry) {
+            log.add(entry.name.equals("name " + entry.id) ? "insert " + entry.id
+                    : "insert " + entry.id + " " + entry.name);
+        }
+
+        @Override
+        public void update(long id, MarkerParser.Entry entry) {
+            log.add("update " + id + " " + entry.id + " " + entry.name);
+        }
+
+        @Override
+        public void delete(long id) {
+            log.add("delete " + id);
+        }
+    }
+}
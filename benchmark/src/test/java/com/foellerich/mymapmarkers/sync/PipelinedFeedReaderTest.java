@@ -0,0 +1,133 @@
+package com.foellerich.mymapmarkers.sync;
+
+import com.foellerich.mymapmarkers.net.MarkerParser;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class PipelinedFeedReaderTest {
+
+    // larger than the parser's buffer, so the failure hits the producer thread
+    private static final byte[] FEED = feed(5000);
+
+    @Test
+    public void handsOnAllSections() throws IOException {
+        byte[] delta = ("{\"changed\":[{\"_id\":\"a\"},{\"_id\":\"b\"},{\"_id\":\"c\"}],"
+                + "\"deleted\":[\"d\",\"e\"],\"next_token\":\"t\"}")
+                .getBytes(Charset.forName("UTF-8"));
+        MarkerParser.FeedReader reader = open(new ByteArrayInputStream(delta));
+        try {
+            assertEquals(MarkerParser.FeedReader.SECTION_CHANGED, reader.nextSection());
+            List<String> ids = new ArrayList<String>();
+            MarkerParser.Entry entry;
+            while ((entry = reader.nextEntry()) != null) {
+                ids.add(entry.id);
+            }
+            assertEquals(3, ids.size());
+            assertEquals(MarkerParser.FeedReader.SECTION_DELETED, reader.nextSection());
+            assertEquals("d", reader.nextDeletedId());
+            assertEquals("e", reader.nextDeletedId());
+            assertNull(reader.nextDeletedId());
+            assertEquals(MarkerParser.FeedReader.SECTION_END, reader.nextSection());
+            assertEquals("t", reader.getNextToken());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void forwardsIOException() throws IOException {
+        IOException failure = new IOException("connection reset");
+        try {
+            readAll(new FailingStream(failure));
+            fail("failure swallowed");
+        } catch (IOException e) {
+            assertSame(failure, e);
+        }
+    }
+
+    @Test
+    public void wrapsRuntimeException() throws IOException {
+        RuntimeException failure = new IllegalStateException("broken");
+        try {
+            readAll(new FailingStream(failure));
+            fail("failure swallowed");
+        } catch (IOException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void rethrowsErrorUnchanged() throws IOException {
+        Error failure = new OutOfMemoryError("feed too large");
+        try {
+            readAll(new FailingStream(failure));
+            fail("failure swallowed");
+        } catch (OutOfMemoryError e) {
+            assertSame(failure, e);
+        }
+    }
+
+    private static int readAll(InputStream in) throws IOException {
+        MarkerParser.FeedReader reader = open(in);
+        int entries = 0;
+        try {
+            while (reader.nextSection() != MarkerParser.FeedReader.SECTION_END) {
+                while (reader.nextEntry() != null) {
+                    entries++;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return entries;
+    }
+
+    private static MarkerParser.FeedReader open(InputStream in) throws IOException {
+        return new PipelinedFeedReader(new MarkerParser(true).open(in), 4, 2, new SyncTrace());
+    }
+
+    private static byte[] feed(int entries) {
+        StringBuilder feed = new StringBuilder("{\"markers\":[");
+        for (int i = 0; i < entries; i++) {
+            feed.append(i == 0 ? "" : ",").append("{\"_id\":\"").append(i).append("\"}");
+        }
+        return feed.append("]}").toString().getBytes(Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Hands out half of {@link #FEED}, then fails with the given throwable.
+     */
+    private static class FailingStream extends InputStream {
+        private final Throwable mFailure;
+        private int mPosition = 0;
+
+        FailingStream(Throwable failure) {
+            mFailure = failure;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mPosition == FEED.length / 2) {
+                if (mFailure instanceof IOException) {
+                    throw (IOException) mFailure;
+                } else if (mFailure instanceof RuntimeException) {
+                    throw (RuntimeException) mFailure;
+                }
+                throw (Error) mFailure;
+            }
+            return FEED[mPosition++];
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.foellerich.mymapmarkers.sync;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SyncSchedulerTest {
+
+    private static final long HOUR = 60 * 60;
+
+    @Test
+    public void firstSampleIsTheRate() {
+        assertEquals(0.5, SyncScheduler.updateRate(-1, 1800, HOUR), 0);
+    }
+
+    @Test
+    public void averagesSamples() {
+        assertEquals(0.3 * 2 + 0.7 * 1, SyncScheduler.updateRate(1, 2 * HOUR, HOUR), 1e-12);
+    }
+
+    @Test
+    public void keepsRateWithoutElapsedTime() {
+        assertEquals(0.25, SyncScheduler.updateRate(0.25, 100, 0), 0);
+        assertEquals(0.25, SyncScheduler.updateRate(0.25, 100, -5), 0);
+    }
+
+    @Test
+    public void aimsAtOneChangePerSync() {
+        assertEquals(HOUR, SyncScheduler.getInterval(1.0 / HOUR, 0, -1));
+    }
+
+    @Test
+    public void clampsToFifteenMinutes() {
+        assertEquals(15 * 60, SyncScheduler.MIN_INTERVAL_SECONDS);
+        assertEquals(15 * 60, SyncScheduler.getInterval(1, HOUR, -1));
+        assertEquals(15 * 60, SyncScheduler.getInterval(1000, HOUR, 0));
+        assertEquals(15 * 60, SyncScheduler.getInterval(1.0 / (15 * 60), HOUR, -1));
+        assertEquals(15 * 60, SyncScheduler.getInterval(-1, 60, -1));
+    }
+
+    @Test
+    public void clampsToOneDay() {
+        assertEquals(24 * HOUR, SyncScheduler.MAX_INTERVAL_SECONDS);
+        assertEquals(24 * HOUR, SyncScheduler.getInterval(0, HOUR, -1));
+        assertEquals(24 * HOUR, SyncScheduler.getInterval(1e-9, HOUR, -1));
+        assertEquals(24 * HOUR, SyncScheduler.getInterval(1.0 / (24 * HOUR), HOUR, -1));
+        assertEquals(24 * HOUR, SyncScheduler.getInterval(-1, 7 * 24 * HOUR, -1));
+    }
+
+    @Test
+    public void maxAgeIsLowerBound() {
+        assertEquals(2 * HOUR, SyncScheduler.getInterval(1, HOUR, 2 * HOUR));
+        assertEquals(HOUR, SyncScheduler.getInterval(1.0 / HOUR, HOUR, 60));
+        assertEquals(24 * HOUR, SyncScheduler.getInterval(1, HOUR, 30 * 24 * HOUR));
+    }
+
+    @Test
+    public void keepsIntervalWithoutRate() {
+        assertEquals(3 * HOUR, SyncScheduler.getInterval(-1, 3 * HOUR, -1));
+    }
+
+    @Test
+    public void ignoresChangesWithinHysteresis() {
+        assertFalse(SyncScheduler.shouldReschedule(HOUR, HOUR));
+        assertFalse(SyncScheduler.shouldReschedule(HOUR, HOUR + HOUR / 4));
+        assertFalse(SyncScheduler.shouldReschedule(HOUR, HOUR - HOUR / 4));
+    }
+
+    @Test
+    public void reschedulesOutsideHysteresis() {
+        assertTrue(SyncScheduler.shouldReschedule(HOUR, HOUR + HOUR / 4 + 1));
+        assertTrue(SyncScheduler.shouldReschedule(HOUR, HOUR - HOUR / 4 - 1));
+        assertTrue(SyncScheduler.shouldReschedule(0, 15 * 60));
+    }
+}